@@ -16,14 +16,19 @@
 package org.pixmob.fm2;
 
 import static org.pixmob.fm2.Constants.DEBUG;
+import static org.pixmob.fm2.Constants.SHARED_PREFS;
+import static org.pixmob.fm2.Constants.SP_KEY_HTTP_KEEP_ALIVE;
+import static org.pixmob.fm2.Constants.SP_KEY_LAST_DATABASE_CLEANUP;
 import static org.pixmob.fm2.Constants.TAG;
 
 import org.pixmob.fm2.features.Features;
 import org.pixmob.fm2.features.StrictModeFeature;
 import org.pixmob.fm2.services.DatabaseCleanupService;
 import org.pixmob.fm2.services.SchedulerService;
+import org.pixmob.fm2.util.HttpUtils;
 
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.util.Log;
 
 /**
@@ -41,8 +46,24 @@ public class Application extends android.app.Application {
             Features.getFeature(StrictModeFeature.class).enable();
         }
         
-        // Cleanup database.
-        startService(new Intent(this, DatabaseCleanupService.class));
+        // Persistent connections must be set before the first request: a
+        // change of this setting is applied when the application is started
+        // again.
+        final SharedPreferences prefs = getSharedPreferences(SHARED_PREFS,
+            MODE_PRIVATE);
+        HttpUtils.setConnectionPooling(
+            prefs.getBoolean(SP_KEY_HTTP_KEEP_ALIVE, false),
+            HttpUtils.DEFAULT_MAX_IDLE_CONNECTIONS,
+            HttpUtils.DEFAULT_KEEP_ALIVE_DURATION);
+        
+        // Cleanup database, if the last cleanup is too old: the database is
+        // not read when the application starts.
+        final long now = System.currentTimeMillis();
+        final long lastCleanup = prefs.getLong(SP_KEY_LAST_DATABASE_CLEANUP, 0);
+        if (now < lastCleanup
+                || now - lastCleanup > DatabaseCleanupService.CLEANUP_INTERVAL) {
+            startService(new Intent(this, DatabaseCleanupService.class));
+        }
         
         // Make sure background scheduling is set.
         startService(new Intent(this, SchedulerService.class));
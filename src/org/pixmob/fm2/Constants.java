@@ -50,6 +50,32 @@ public final class Constants {
      */
     public static final String SP_KEY_PERFORM_UPDATES = "performUpdates";
     
+    /**
+     * Preference key: number of accounts synchronized at the same time.
+     */
+    public static final String SP_KEY_SYNC_THREADS = "syncThreads";
+    
+    /**
+     * Preference key: reuse Http connections.
+     */
+    public static final String SP_KEY_HTTP_KEEP_ALIVE = "httpKeepAlive";
+    
+    /**
+     * Preference key: account list sort key.
+     */
+    public static final String SP_KEY_ACCOUNT_SORT_KEY = "accountSortKey";
+    
+    /**
+     * Preference key: last database cleanup (timestamp).
+     */
+    public static final String SP_KEY_LAST_DATABASE_CLEANUP = "lastDatabaseCleanup";
+    
+    /**
+     * Preference key: time of the pending background synchronization
+     * (timestamp).
+     */
+    public static final String SP_KEY_PENDING_SYNC_TIME = "pendingSyncTime";
+    
     private Constants() {
     }
 }
@@ -15,18 +15,46 @@
  */
 package org.pixmob.fm2.model;
 
-import java.io.Serializable;
+import android.os.Parcel;
+import android.os.Parcelable;
 
 /**
  * This class stores data about an user account. As soon as an account is
  * submitted by the user, the application will be able to check for updates.
  * Some attributes may be <code>null</code> (except for {@link #login} and
  * {@link #password}).
+ * <p>
+ * The password is not written to a {@link Parcel}: it must be read from
+ * {@link AccountRepository} when required.
+ * </p>
  * @author Pixmob
  * @see AccountRepository
+ * @see AccountCodec
  */
-public final class Account implements Serializable {
-    private static final long serialVersionUID = 1L;
+public final class Account implements Parcelable {
+    /**
+     * Minimum login length: accounts with a shorter login cannot be
+     * synchronized.
+     */
+    public static final int MIN_LOGIN_LENGTH = 8;
+    public static final Parcelable.Creator<Account> CREATOR = new Parcelable.Creator<Account>() {
+        @Override
+        public Account createFromParcel(Parcel source) {
+            final Account account = new Account();
+            account.id = source.readInt();
+            account.name = source.readString();
+            account.phoneNumber = source.readString();
+            account.login = source.readString();
+            account.status = source.readInt();
+            account.timestamp = source.readLong();
+            return account;
+        }
+        
+        @Override
+        public Account[] newArray(int size) {
+            return new Account[size];
+        }
+    };
     
     /**
      * Account database identifier.
@@ -58,6 +86,21 @@ public final class Account implements Serializable {
      */
     public long timestamp;
     
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+    
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(id);
+        dest.writeString(name);
+        dest.writeString(phoneNumber);
+        dest.writeString(login);
+        dest.writeInt(status);
+        dest.writeLong(timestamp);
+    }
+    
     @Override
     public String toString() {
         return "Account[id=" + id + ", login=" + login + ", password="
@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.model;
+
+import static org.pixmob.fm2.Constants.DEBUG;
+import static org.pixmob.fm2.Constants.TAG;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Write-through cache for {@link Account} instances. Accounts are read from
+ * {@link AccountRepository} once, and then kept in memory: every change is
+ * written to the database before the cache is updated. Registered listeners
+ * are notified when accounts are changed.
+ * <p>
+ * Accounts returned by this cache are copies: changing an instance has no
+ * effect until this instance is updated through this cache. Readers are not
+ * blocked while accounts are written to the database.
+ * </p>
+ * <p>
+ * The {@link AccountSnapshot} file is kept up to date with cached accounts,
+ * and with updated accounts if accounts are not cached.
+ * </p>
+ * @author Pixmob
+ */
+public class AccountCache {
+    private static AccountCache instance;
+    private final Context context;
+    private final AccountRepository repository;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final Object writeLock = new Object();
+    private final Object snapshotLock = new Object();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private List<Account> accounts;
+    private String sortKey = AccountRepository.SORT_BY_PHONE_NUMBER;
+    private long version;
+    private long snapshotVersion = -1;
+    
+    /**
+     * Listener for account changes.
+     * @author Pixmob
+     */
+    public static interface Listener {
+        /**
+         * Accounts were created, updated or deleted. This method is called
+         * from the thread which changed accounts.
+         */
+        void onAccountsChanged();
+        
+        /**
+         * Accounts were updated, without any change to the account order:
+         * account lists can be updated in place. This method is called from
+         * the thread which updated accounts.
+         * @param updatedAccounts copies of updated accounts, which are shared
+         *            with the cache: these instances must not be changed
+         * @param version cache version after this update
+         */
+        void onAccountsUpdated(Collection<Account> updatedAccounts,
+                long version);
+    }
+    
+    private AccountCache(final Context context) {
+        this.context = context;
+        repository = new AccountRepository(context);
+    }
+    
+    /**
+     * Get the account cache shared by the application.
+     */
+    public static synchronized AccountCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new AccountCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+    
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+    
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Get the cache version. This value is changed each time accounts are
+     * changed.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+    
+    /**
+     * Get account list, using the order of cached accounts. Accounts are read
+     * from the database if this cache is empty.
+     */
+    public List<Account> list() {
+        return list(null);
+    }
+    
+    /**
+     * Get account list. Accounts are read from the database if this cache is
+     * empty, or if cached accounts are not sorted with this sort key.
+     * @param sortKey {@link AccountRepository#SORT_BY_PHONE_NUMBER},
+     *            {@link AccountRepository#SORT_BY_NAME}, or <code>null</code>
+     *            to keep the order of cached accounts
+     */
+    public List<Account> list(String sortKey) {
+        List<Account> cachedAccounts;
+        final String loadSortKey;
+        final long loadVersion;
+        synchronized (this) {
+            loadSortKey = sortKey == null ? this.sortKey : sortKey;
+            cachedAccounts = loadSortKey.equals(this.sortKey) ? accounts
+                    : null;
+            loadVersion = version;
+        }
+        
+        if (cachedAccounts == null) {
+            missCount.incrementAndGet();
+            cachedAccounts = repository.list(loadSortKey);
+            boolean cached = false;
+            synchronized (this) {
+                // Accounts which were changed while loading are not cached.
+                if (version == loadVersion
+                        && (accounts == null || !loadSortKey
+                                .equals(this.sortKey))) {
+                    accounts = cachedAccounts;
+                    this.sortKey = loadSortKey;
+                    cached = true;
+                }
+            }
+            if (cached) {
+                saveSnapshot(cachedAccounts, loadSortKey, loadVersion);
+            }
+        } else {
+            hitCount.incrementAndGet();
+        }
+        
+        if (DEBUG) {
+            Log.d(TAG, "Account cache: " + hitCount.get() + " hit(s), "
+                    + missCount.get() + " miss(es)");
+        }
+        
+        final List<Account> result = new ArrayList<Account>(
+                cachedAccounts.size());
+        for (final Account account : cachedAccounts) {
+            result.add(copy(account));
+        }
+        return result;
+    }
+    
+    /**
+     * Create a new account.
+     */
+    public void create(String login, String password) {
+        synchronized (writeLock) {
+            repository.create(login, password);
+            
+            final long newVersion;
+            synchronized (this) {
+                // The account identifier is set by the database: accounts will
+                // be read again.
+                accounts = null;
+                newVersion = ++version;
+            }
+            saveSnapshot(null, null, newVersion);
+        }
+        fireOnAccountsChanged();
+    }
+    
+    /**
+     * Create accounts, in a single transaction.
+     * @return number of created accounts
+     * @see AccountRepository#createAll(Collection)
+     */
+    public int createAll(Collection<Account> newAccounts) {
+        final int count;
+        synchronized (writeLock) {
+            count = repository.createAll(newAccounts);
+            if (count == 0) {
+                return 0;
+            }
+            
+            final long newVersion;
+            synchronized (this) {
+                accounts = null;
+                newVersion = ++version;
+            }
+            saveSnapshot(null, null, newVersion);
+        }
+        fireOnAccountsChanged();
+        return count;
+    }
+    
+    /**
+     * Delete an account.
+     */
+    public void delete(Account account) {
+        synchronized (writeLock) {
+            repository.delete(account);
+            
+            final List<Account> snapshotAccounts;
+            final String snapshotSortKey;
+            final long newVersion;
+            synchronized (this) {
+                if (accounts != null) {
+                    final List<Account> newAccounts = new ArrayList<Account>(
+                            accounts.size());
+                    for (final Account a : accounts) {
+                        if (a.id != account.id) {
+                            newAccounts.add(a);
+                        }
+                    }
+                    accounts = newAccounts;
+                }
+                snapshotAccounts = accounts;
+                snapshotSortKey = sortKey;
+                newVersion = ++version;
+            }
+            saveSnapshot(snapshotAccounts, snapshotSortKey, newVersion);
+        }
+        fireOnAccountsChanged();
+    }
+    
+    /**
+     * Delete invalid accounts.
+     * @return number of deleted accounts
+     * @see AccountRepository#deleteInvalidAccounts()
+     */
+    public int deleteInvalidAccounts() {
+        final int count;
+        synchronized (writeLock) {
+            count = repository.deleteInvalidAccounts();
+            if (count == 0) {
+                return 0;
+            }
+            
+            final long newVersion;
+            synchronized (this) {
+                accounts = null;
+                newVersion = ++version;
+            }
+            saveSnapshot(null, null, newVersion);
+        }
+        fireOnAccountsChanged();
+        return count;
+    }
+    
+    /**
+     * Update an account.
+     */
+    public void update(Account account) {
+        updateAll(Collections.singletonList(account));
+    }
+    
+    /**
+     * Update accounts. Every account is written in a single transaction. If
+     * a sort key value is changed, accounts will be read again. Otherwise,
+     * listeners are notified with
+     * {@link Listener#onAccountsUpdated(Collection, long)}.
+     */
+    public void updateAll(Collection<Account> updatedAccounts) {
+        if (updatedAccounts.isEmpty()) {
+            return;
+        }
+        
+        // Cached accounts and listeners never see the caller instances.
+        // Copies are indexed by identifier, so that cached accounts are
+        // patched in a single pass.
+        final List<Account> updatedCopies = new ArrayList<Account>(
+                updatedAccounts.size());
+        final Map<Integer, Account> updatedById = new HashMap<Integer, Account>(
+                updatedAccounts.size() * 2);
+        for (final Account account : updatedAccounts) {
+            final Account copy = copy(account);
+            updatedCopies.add(copy);
+            updatedById.put(copy.id, copy);
+        }
+        
+        final boolean orderChanged;
+        final long newVersion;
+        synchronized (writeLock) {
+            // Sort key values are compared by the database, so that the
+            // order is known even if accounts are not cached.
+            orderChanged = repository.updateAll(updatedAccounts);
+            
+            final List<Account> snapshotAccounts;
+            String snapshotSortKey;
+            synchronized (this) {
+                // The sort key is only known if accounts are cached.
+                snapshotSortKey = accounts != null ? sortKey : null;
+                if (accounts != null && orderChanged) {
+                    accounts = null;
+                } else if (accounts != null) {
+                    final List<Account> newAccounts = new ArrayList<Account>(
+                            accounts.size());
+                    for (final Account account : accounts) {
+                        final Account updatedAccount = updatedById
+                                .get(account.id);
+                        newAccounts.add(updatedAccount != null ? updatedAccount
+                                : account);
+                    }
+                    accounts = newAccounts;
+                }
+                snapshotAccounts = accounts;
+                newVersion = ++version;
+            }
+            
+            // The snapshot is kept up to date even if accounts are not
+            // cached, which is the case for background synchronizations.
+            if (snapshotAccounts != null) {
+                saveSnapshot(snapshotAccounts, snapshotSortKey, newVersion);
+            } else if (!orderChanged) {
+                updateSnapshot(updatedCopies, newVersion);
+            } else {
+                if (snapshotSortKey == null) {
+                    snapshotSortKey = AccountSnapshot.readSortKey(context);
+                }
+                if (snapshotSortKey != null) {
+                    reloadSnapshot(snapshotSortKey, newVersion);
+                }
+            }
+        }
+        if (orderChanged) {
+            fireOnAccountsChanged();
+        } else {
+            fireOnAccountsUpdated(
+                Collections.unmodifiableList(updatedCopies), newVersion);
+        }
+    }
+    
+    /**
+     * Get the number of requests served from memory.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+    
+    /**
+     * Get the number of requests served from the database.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+    
+    /**
+     * Save accounts to the snapshot file, unless a more recent version was
+     * saved. If accounts are unknown, the snapshot is deleted: it will be
+     * written again when accounts are read.
+     */
+    private void saveSnapshot(List<Account> snapshotAccounts,
+            String snapshotSortKey, long accountsVersion) {
+        synchronized (snapshotLock) {
+            if (accountsVersion < snapshotVersion) {
+                return;
+            }
+            snapshotVersion = accountsVersion;
+            
+            if (snapshotAccounts == null) {
+                AccountSnapshot.delete(context);
+            } else {
+                AccountSnapshot.write(context, snapshotAccounts,
+                    snapshotSortKey);
+            }
+        }
+    }
+    
+    /**
+     * Update accounts in the snapshot file, unless a more recent version was
+     * saved. The account order must not be changed.
+     */
+    private void updateSnapshot(Collection<Account> updatedAccounts,
+            long accountsVersion) {
+        synchronized (snapshotLock) {
+            if (accountsVersion < snapshotVersion) {
+                return;
+            }
+            snapshotVersion = accountsVersion;
+            AccountSnapshot.update(context, updatedAccounts);
+        }
+    }
+    
+    /**
+     * Read accounts again, and save them to the snapshot file. Accounts are
+     * cached if they were not changed meanwhile. This method must be called
+     * with {@link #writeLock}.
+     */
+    private void reloadSnapshot(String snapshotSortKey, long accountsVersion) {
+        final List<Account> newAccounts = repository.list(snapshotSortKey);
+        synchronized (this) {
+            if (version == accountsVersion && accounts == null) {
+                accounts = newAccounts;
+                sortKey = snapshotSortKey;
+            }
+        }
+        saveSnapshot(newAccounts, snapshotSortKey, accountsVersion);
+    }
+    
+    private void fireOnAccountsChanged() {
+        for (final Listener listener : listeners) {
+            try {
+                listener.onAccountsChanged();
+            } catch (Exception e) {
+                Log.w(TAG, "Account cache listener error", e);
+            }
+        }
+    }
+    
+    private void fireOnAccountsUpdated(Collection<Account> updatedAccounts,
+            long newVersion) {
+        for (final Listener listener : listeners) {
+            try {
+                listener.onAccountsUpdated(updatedAccounts, newVersion);
+            } catch (Exception e) {
+                Log.w(TAG, "Account cache listener error", e);
+            }
+        }
+    }
+    
+    private static Account copy(Account account) {
+        final Account a = new Account();
+        a.id = account.id;
+        a.name = account.name;
+        a.phoneNumber = account.phoneNumber;
+        a.login = account.login;
+        a.password = account.password;
+        a.status = account.status;
+        a.timestamp = account.timestamp;
+        return a;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Compact binary encoding for {@link Account} instances. Numbers are written
+ * as variable-length integers, and <code>null</code> strings are not written
+ * at all: an encoded account usually takes less than 50 bytes.
+ * <p>
+ * An encoded account starts with a byte of flags, telling which strings are
+ * set. This encoding is versioned with {@link #VERSION}: this value must be
+ * changed if the encoding is changed.
+ * </p>
+ * @author Pixmob
+ */
+public final class AccountCodec {
+    /**
+     * Encoding version.
+     */
+    public static final int VERSION = 1;
+    private static final int FLAG_NAME = 1;
+    private static final int FLAG_PHONE_NUMBER = 1 << 1;
+    private static final int FLAG_LOGIN = 1 << 2;
+    private static final int FLAG_PASSWORD = 1 << 3;
+    
+    private AccountCodec() {
+    }
+    
+    /**
+     * Encode an account.
+     * @param withPassword if <code>false</code>, the account password is not
+     *            written
+     */
+    public static void write(DataOutput out, Account account,
+            boolean withPassword) throws IOException {
+        int flags = 0;
+        if (account.name != null) {
+            flags |= FLAG_NAME;
+        }
+        if (account.phoneNumber != null) {
+            flags |= FLAG_PHONE_NUMBER;
+        }
+        if (account.login != null) {
+            flags |= FLAG_LOGIN;
+        }
+        if (withPassword && account.password != null) {
+            flags |= FLAG_PASSWORD;
+        }
+        
+        out.writeByte(flags);
+        writeVarLong(out, account.id);
+        writeVarLong(out, account.status);
+        writeVarLong(out, account.timestamp);
+        if ((flags & FLAG_NAME) != 0) {
+            out.writeUTF(account.name);
+        }
+        if ((flags & FLAG_PHONE_NUMBER) != 0) {
+            out.writeUTF(account.phoneNumber);
+        }
+        if ((flags & FLAG_LOGIN) != 0) {
+            out.writeUTF(account.login);
+        }
+        if ((flags & FLAG_PASSWORD) != 0) {
+            out.writeUTF(account.password);
+        }
+    }
+    
+    /**
+     * Decode an account.
+     */
+    public static Account read(DataInput in) throws IOException {
+        final int flags = in.readUnsignedByte();
+        
+        final Account account = new Account();
+        account.id = (int) readVarLong(in);
+        account.status = (int) readVarLong(in);
+        account.timestamp = readVarLong(in);
+        if ((flags & FLAG_NAME) != 0) {
+            account.name = in.readUTF();
+        }
+        if ((flags & FLAG_PHONE_NUMBER) != 0) {
+            account.phoneNumber = in.readUTF();
+        }
+        if ((flags & FLAG_LOGIN) != 0) {
+            account.login = in.readUTF();
+        }
+        if ((flags & FLAG_PASSWORD) != 0) {
+            account.password = in.readUTF();
+        }
+        return account;
+    }
+    
+    /**
+     * Write a positive number, with 7 bits per byte.
+     */
+    private static void writeVarLong(DataOutput out, long value)
+            throws IOException {
+        if (value < 0) {
+            throw new IOException("Cannot encode negative value: " + value);
+        }
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+    
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid encoded value");
+    }
+}
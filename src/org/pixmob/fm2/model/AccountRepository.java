@@ -18,75 +18,294 @@ package org.pixmob.fm2.model;
 import static org.pixmob.fm2.Constants.DEBUG;
 import static org.pixmob.fm2.Constants.TAG;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
  * A repository for managing {@link Account} instances in a local database.
+ * Every repository shares the same database connection, which is kept open
+ * as long as the application process is running. Writes are serialized, but
+ * readers are never blocked by a writer if write-ahead logging is supported.
+ * <p>
+ * Account status changes are recorded in an append-only history table.
+ * Synchronization results and schedules are stored in a ledger table, with a
+ * row for each account: due accounts are read with an index.
+ * </p>
+ * <p>
+ * Accounts are sorted by the database, using a sort key: accounts without a
+ * value for this key come last. The account identifier makes this order
+ * unique.
+ * </p>
  * @author Pixmob
  */
 public class AccountRepository {
+    /**
+     * Sort key: account phone number.
+     */
+    public static final String SORT_BY_PHONE_NUMBER = "phone_number";
+    /**
+     * Sort key: account name.
+     */
+    public static final String SORT_BY_NAME = "name";
     private static final String ACCOUNTS_TABLE = "accounts";
+    private static final String HISTORY_TABLE = "account_history";
+    private static final String LEDGER_TABLE = "sync_ledger";
+    /**
+     * Account status transitions are compacted to one transition per account
+     * for this period (a day).
+     */
+    private static final long HISTORY_COMPACTION_PERIOD = 1000L * 60 * 60 * 24;
+    private static final String[] LEDGER_COLUMNS = { "account_id", "interval",
+            "next_due", "failures", "last_success", "last_failure" };
+    /**
+     * Maximum number of free pages to reclaim with an incremental vacuum.
+     */
+    private static final int INCREMENTAL_VACUUM_PAGES = 256;
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+    private static final String[] COLUMNS = { "id", "name", "phone_number",
+            "login", "status", "timestamp", "password" };
+    /**
+     * Columns read for displaying accounts: the password is not included.
+     */
+    private static final String[] SUMMARY_COLUMNS = { "id", "name",
+            "phone_number", "login", "status", "timestamp" };
     private static final Object LOCK = new Object();
+    private static final AtomicLong LOCK_WAIT_TIME = new AtomicLong();
+    private static final AtomicLong LOCK_ACQUISITIONS = new AtomicLong();
+    private static final AtomicLong OPEN_CLOSE_AVOIDED = new AtomicLong();
+    private static SQLiteOpenHelper sharedDbHelper;
+    private static SQLiteDatabase sharedDb;
     private final SQLiteOpenHelper dbHelper;
     
     public AccountRepository(final Context context) {
-        dbHelper = new DbHelper(context);
+        dbHelper = getDbHelper(context);
     }
     
-    private static void close(SQLiteDatabase db) {
-        if (db != null) {
-            db.close();
+    private static synchronized SQLiteOpenHelper getDbHelper(Context context) {
+        if (sharedDbHelper == null) {
+            sharedDbHelper = new DbHelper(context.getApplicationContext());
         }
+        return sharedDbHelper;
     }
     
     /**
-     * Get account list.
+     * Get the shared database connection. This connection is never closed.
+     */
+    private SQLiteDatabase getDatabase() {
+        synchronized (AccountRepository.class) {
+            if (sharedDb == null || !sharedDb.isOpen()) {
+                sharedDb = dbHelper.getWritableDatabase();
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                    // Readers and the writer do not block each other.
+                    sharedDb.enableWriteAheadLogging();
+                }
+                if (DEBUG) {
+                    Log.d(TAG, "Database opened");
+                }
+            } else {
+                OPEN_CLOSE_AVOIDED.incrementAndGet();
+            }
+            return sharedDb;
+        }
+    }
+    
+    /**
+     * Record the time spent waiting for the write lock.
+     */
+    private static void onLockAcquired(long waitStart) {
+        final long waitTime = SystemClock.elapsedRealtime() - waitStart;
+        final long totalWaitTime = LOCK_WAIT_TIME.addAndGet(waitTime);
+        final long acquisitions = LOCK_ACQUISITIONS.incrementAndGet();
+        if (DEBUG && waitTime != 0) {
+            Log.d(TAG, "Database write lock acquired after " + waitTime
+                    + " ms (" + totalWaitTime + " ms for " + acquisitions
+                    + " writes)");
+        }
+    }
+    
+    /**
+     * Get the total time spent waiting for the database write lock, in
+     * milliseconds.
+     */
+    public static long getLockWaitTime() {
+        return LOCK_WAIT_TIME.get();
+    }
+    
+    /**
+     * Get the number of database open/close cycles avoided by sharing the
+     * database connection.
+     */
+    public static long getOpenCloseAvoided() {
+        return OPEN_CLOSE_AVOIDED.get();
+    }
+    
+    /**
+     * Get account list, sorted by phone number.
      */
     public List<Account> list() {
+        return list(SORT_BY_PHONE_NUMBER);
+    }
+    
+    /**
+     * Get account list.
+     * @param sortKey {@link #SORT_BY_PHONE_NUMBER} or {@link #SORT_BY_NAME}
+     */
+    public List<Account> list(String sortKey) {
+        checkSortKey(sortKey);
+        
+        // Accounts with a value for the sort key, then the others: both
+        // queries are served by the index on the sort key.
         final List<Account> accounts = new ArrayList<Account>(4);
+        query(COLUMNS, sortKey + " IS NOT NULL", null, sortKey + ", id", null,
+            accounts);
+        query(COLUMNS, sortKey + " IS NULL", null, "id", null, accounts);
+        return accounts;
+    }
+    
+    /**
+     * Check if a sort key is supported.
+     * @throws IllegalArgumentException if this sort key is not supported
+     */
+    public static void checkSortKey(String sortKey) {
+        if (!SORT_BY_PHONE_NUMBER.equals(sortKey)
+                && !SORT_BY_NAME.equals(sortKey)) {
+            throw new IllegalArgumentException("Unsupported sort key: "
+                    + sortKey);
+        }
+    }
+    
+    private static String getSortValue(Account account, String sortKey) {
+        return SORT_BY_NAME.equals(sortKey) ? account.name
+                : account.phoneNumber;
+    }
+    
+    /**
+     * Get an account.
+     * @return <code>null</code> if this account does not exist
+     */
+    public Account get(int id) {
+        final List<Account> accounts = new ArrayList<Account>(1);
+        query(COLUMNS, "id=?", new String[] { String.valueOf(id) }, null, null,
+            accounts);
+        return accounts.isEmpty() ? null : accounts.get(0);
+    }
+    
+    /**
+     * Get the number of accounts.
+     */
+    public int count() {
+        final SQLiteStatement st = getDatabase().compileStatement(
+            "SELECT COUNT(*) FROM " + ACCOUNTS_TABLE);
+        try {
+            return (int) st.simpleQueryForLong();
+        } finally {
+            st.close();
+        }
+    }
+    
+    /**
+     * Get a page of accounts, starting after an account. Passwords are not
+     * read.
+     * @param last last account of the previous page, or <code>null</code> to
+     *            get the first page
+     * @param pageSize maximum number of accounts to return
+     * @param sortKey {@link #SORT_BY_PHONE_NUMBER} or {@link #SORT_BY_NAME}
+     */
+    public List<Account> listPageAfter(Account last, int pageSize,
+            String sortKey) {
+        checkSortKey(sortKey);
         
-        synchronized (LOCK) {
-            SQLiteDatabase db = null;
-            try {
-                db = dbHelper.getReadableDatabase();
-                Cursor c = null;
-                try {
-                    c = db.query(ACCOUNTS_TABLE, new String[] { "id", "name",
-                            "phone_number", "login", "password", "status",
-                            "timestamp" }, null, null, null, null, "name");
-                    
-                    while (c.moveToNext()) {
-                        final Account account = new Account();
-                        account.id = c.getInt(0);
-                        account.name = c.getString(1);
-                        account.phoneNumber = c.getString(2);
-                        account.login = c.getString(3);
-                        account.password = c.getString(4);
-                        account.status = c.getInt(5);
-                        account.timestamp = c.getLong(6);
-                        accounts.add(account);
-                    }
-                } finally {
-                    if (c != null) {
-                        c.close();
-                    }
-                }
-            } finally {
-                close(db);
+        final List<Account> accounts = new ArrayList<Account>(pageSize);
+        final String lastValue = last == null ? null : getSortValue(last,
+            sortKey);
+        if (last == null) {
+            query(SUMMARY_COLUMNS, sortKey + " IS NOT NULL", null, sortKey
+                    + ", id", String.valueOf(pageSize), accounts);
+        } else if (lastValue != null) {
+            query(SUMMARY_COLUMNS, sortKey + ">? OR (" + sortKey
+                    + "=? AND id>?)", new String[] { lastValue, lastValue,
+                    String.valueOf(last.id) }, sortKey + ", id",
+                String.valueOf(pageSize), accounts);
+        }
+        
+        // Accounts without a value for the sort key come last.
+        final int remaining = pageSize - accounts.size();
+        if (remaining > 0) {
+            if (lastValue == null && last != null) {
+                query(SUMMARY_COLUMNS, sortKey + " IS NULL AND id>?",
+                    new String[] { String.valueOf(last.id) }, "id",
+                    String.valueOf(remaining), accounts);
+            } else {
+                query(SUMMARY_COLUMNS, sortKey + " IS NULL", null, "id",
+                    String.valueOf(remaining), accounts);
             }
         }
+        return accounts;
+    }
+    
+    /**
+     * Get a page of accounts, starting at a position. This method is slower
+     * than {@link #listPageAfter(Account, int, String)}, since skipped
+     * accounts are still read by the database.
+     */
+    public List<Account> listPageAt(int offset, int pageSize, String sortKey) {
+        checkSortKey(sortKey);
         
+        final List<Account> accounts = new ArrayList<Account>(pageSize);
+        query(SUMMARY_COLUMNS, null, null, sortKey + " IS NULL, " + sortKey
+                + ", id", offset + "," + pageSize, accounts);
         return accounts;
     }
     
+    /**
+     * Read accounts. The columns must start with {@link #SUMMARY_COLUMNS}.
+     */
+    private void query(String[] columns, String selection,
+            String[] selectionArgs, String orderBy, String limit,
+            List<Account> accounts) {
+        final SQLiteDatabase db = getDatabase();
+        Cursor c = null;
+        try {
+            c = db.query(ACCOUNTS_TABLE, columns, selection, selectionArgs,
+                null, null, orderBy, limit);
+            
+            final boolean withPassword = columns.length > 6;
+            while (c.moveToNext()) {
+                final Account account = new Account();
+                account.id = c.getInt(0);
+                account.name = c.getString(1);
+                account.phoneNumber = c.getString(2);
+                account.login = c.getString(3);
+                account.status = c.getInt(4);
+                account.timestamp = c.getLong(5);
+                if (withPassword) {
+                    account.password = c.getString(6);
+                }
+                accounts.add(account);
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+    
     /**
      * Create a new account.
      */
@@ -102,19 +321,113 @@ public class AccountRepository {
         cv.put("login", login);
         cv.put("password", password);
         
+        final SQLiteDatabase db = getDatabase();
+        final long waitStart = SystemClock.elapsedRealtime();
         synchronized (LOCK) {
-            SQLiteDatabase db = null;
+            onLockAcquired(waitStart);
+            db.beginTransaction();
             try {
-                db = dbHelper.getWritableDatabase();
-                db.beginTransaction();
-                try {
-                    db.insertOrThrow(ACCOUNTS_TABLE, "id", cv);
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
+                final long id = db.insertOrThrow(ACCOUNTS_TABLE, "id", cv);
+                
+                // A new account is due immediately.
+                final ContentValues ledgerCv = new ContentValues(3);
+                ledgerCv.put("account_id", id);
+                ledgerCv.put("interval", 0);
+                ledgerCv.put("next_due", 0);
+                db.insertOrThrow(LEDGER_TABLE, null, ledgerCv);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+    
+    /**
+     * Create accounts, in a single transaction. An account is not created if
+     * an account with the same login already exists.
+     * @param accounts accounts to create: only logins and passwords are used
+     * @return number of created accounts
+     */
+    public int createAll(Collection<Account> accounts) {
+        if (accounts.isEmpty()) {
+            return 0;
+        }
+        
+        final SQLiteDatabase db = getDatabase();
+        final long waitStart = SystemClock.elapsedRealtime();
+        synchronized (LOCK) {
+            onLockAcquired(waitStart);
+            int count = 0;
+            db.beginTransaction();
+            final SQLiteStatement existsSt = db
+                    .compileStatement("SELECT COUNT(*) FROM " + ACCOUNTS_TABLE
+                            + " WHERE login=?");
+            final SQLiteStatement insertSt = db.compileStatement("INSERT INTO "
+                    + ACCOUNTS_TABLE + " (login, password) VALUES (?, ?)");
+            final SQLiteStatement ledgerSt = db.compileStatement("INSERT INTO "
+                    + LEDGER_TABLE + " (account_id, interval, next_due) "
+                    + "VALUES (?, 0, 0)");
+            try {
+                for (final Account account : accounts) {
+                    existsSt.bindString(1, account.login);
+                    if (existsSt.simpleQueryForLong() == 0) {
+                        insertSt.bindString(1, account.login);
+                        insertSt.bindString(2, account.password);
+                        ledgerSt.bindLong(1, insertSt.executeInsert());
+                        ledgerSt.executeInsert();
+                        ++count;
+                    }
                 }
+                db.setTransactionSuccessful();
             } finally {
-                close(db);
+                existsSt.close();
+                insertSt.close();
+                ledgerSt.close();
+                db.endTransaction();
+            }
+            
+            if (DEBUG) {
+                Log.d(TAG, "Created " + count + " account(s) out of "
+                        + accounts.size());
+            }
+            return count;
+        }
+    }
+    
+    /**
+     * Handler for reading accounts one at a time.
+     * @author Pixmob
+     * @see AccountRepository#forEach(AccountHandler)
+     */
+    public static interface AccountHandler {
+        void onAccount(Account account) throws IOException;
+    }
+    
+    /**
+     * Read every account, sorted by identifier. Accounts are read from a
+     * database cursor as they are handled: they are never loaded at once.
+     */
+    public void forEach(AccountHandler handler) throws IOException {
+        final SQLiteDatabase db = getDatabase();
+        Cursor c = null;
+        try {
+            c = db.query(ACCOUNTS_TABLE, COLUMNS, null, null, null, null, "id");
+            
+            // The same instance is used for every account.
+            final Account account = new Account();
+            while (c.moveToNext()) {
+                account.id = c.getInt(0);
+                account.name = c.getString(1);
+                account.phoneNumber = c.getString(2);
+                account.login = c.getString(3);
+                account.status = c.getInt(4);
+                account.timestamp = c.getLong(5);
+                account.password = c.getString(6);
+                handler.onAccount(account);
+            }
+        } finally {
+            if (c != null) {
+                c.close();
             }
         }
     }
@@ -127,20 +440,19 @@ public class AccountRepository {
             Log.d(TAG, "Deleting account: " + account.login);
         }
         
+        final SQLiteDatabase db = getDatabase();
+        final long waitStart = SystemClock.elapsedRealtime();
         synchronized (LOCK) {
-            SQLiteDatabase db = null;
+            onLockAcquired(waitStart);
+            db.beginTransaction();
             try {
-                db = dbHelper.getWritableDatabase();
-                db.beginTransaction();
-                try {
-                    db.delete(ACCOUNTS_TABLE, "id=?",
-                        new String[] { String.valueOf(account.id) });
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
-                }
+                final String[] args = { String.valueOf(account.id) };
+                db.delete(ACCOUNTS_TABLE, "id=?", args);
+                db.delete(HISTORY_TABLE, "account_id=?", args);
+                db.delete(LEDGER_TABLE, "account_id=?", args);
+                db.setTransactionSuccessful();
             } finally {
-                close(db);
+                db.endTransaction();
             }
         }
     }
@@ -149,31 +461,411 @@ public class AccountRepository {
      * Update an account.
      */
     public void update(Account account) {
+        updateAll(Collections.singletonList(account));
+    }
+    
+    /**
+     * Update accounts. Every account is written in a single transaction. A
+     * status transition is recorded for each account whose status changed.
+     * @return <code>true</code> if the name or the phone number of an account
+     *         changed: accounts may be sorted in a different order
+     */
+    public boolean updateAll(Collection<Account> accounts) {
+        if (accounts.isEmpty()) {
+            return false;
+        }
         if (DEBUG) {
-            Log.d(TAG, "Updating account: " + account.login);
+            for (final Account account : accounts) {
+                Log.d(TAG, "Updating account: " + account.login);
+            }
+        }
+        
+        final SQLiteDatabase db = getDatabase();
+        final long waitStart = SystemClock.elapsedRealtime();
+        synchronized (LOCK) {
+            onLockAcquired(waitStart);
+            final long start = SystemClock.elapsedRealtime();
+            db.beginTransaction();
+            // The previous status is read from the account row, before this
+            // row is updated: nothing is inserted if the status is the same.
+            final SQLiteStatement historySt = db.compileStatement("INSERT INTO "
+                    + HISTORY_TABLE
+                    + " (account_id, old_status, new_status, timestamp) "
+                    + "SELECT id, status, ?, ? FROM " + ACCOUNTS_TABLE
+                    + " WHERE id=? AND status<>?");
+            final SQLiteStatement sortKeySt = db.compileStatement(
+                "SELECT COUNT(*) FROM " + ACCOUNTS_TABLE
+                        + " WHERE id=? AND (name IS NOT ?"
+                        + " OR phone_number IS NOT ?)");
+            final SQLiteStatement st = db.compileStatement("UPDATE "
+                    + ACCOUNTS_TABLE + " SET name=?, phone_number=?, "
+                    + "status=?, timestamp=? WHERE id=?");
+            boolean sortKeysChanged = false;
+            try {
+                for (final Account account : accounts) {
+                    if (!sortKeysChanged) {
+                        sortKeySt.bindLong(1, account.id);
+                        bind(sortKeySt, 2, account.name);
+                        bind(sortKeySt, 3, account.phoneNumber);
+                        sortKeysChanged = sortKeySt.simpleQueryForLong() != 0;
+                    }
+                    
+                    historySt.bindLong(1, account.status);
+                    historySt.bindLong(2, account.timestamp);
+                    historySt.bindLong(3, account.id);
+                    historySt.bindLong(4, account.status);
+                    historySt.execute();
+                    
+                    bind(st, 1, account.name);
+                    bind(st, 2, account.phoneNumber);
+                    st.bindLong(3, account.status);
+                    st.bindLong(4, account.timestamp);
+                    st.bindLong(5, account.id);
+                    st.execute();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                historySt.close();
+                sortKeySt.close();
+                st.close();
+                db.endTransaction();
+            }
+            
+            if (DEBUG) {
+                Log.d(TAG, "Committed " + accounts.size() + " account(s) in "
+                        + (SystemClock.elapsedRealtime() - start) + " ms");
+            }
+            return sortKeysChanged;
+        }
+    }
+    
+    /**
+     * Get account status transitions recorded since a timestamp, ordered by
+     * time.
+     */
+    public List<StatusTransition> listTransitionsSince(long timestamp) {
+        final List<StatusTransition> transitions = new ArrayList<StatusTransition>(
+                8);
+        
+        final SQLiteDatabase db = getDatabase();
+        Cursor c = null;
+        try {
+            c = db.query(HISTORY_TABLE, new String[] { "account_id",
+                    "old_status", "new_status", "timestamp" }, "timestamp>=?",
+                new String[] { String.valueOf(timestamp) }, null, null,
+                "timestamp");
+            
+            while (c.moveToNext()) {
+                final StatusTransition t = new StatusTransition();
+                t.accountId = c.getInt(0);
+                t.oldStatus = c.getInt(1);
+                t.newStatus = c.getInt(2);
+                t.timestamp = c.getLong(3);
+                transitions.add(t);
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
         }
         
-        final ContentValues cv = new ContentValues(4);
-        cv.put("name", account.name);
-        cv.put("phone_number", account.phoneNumber);
-        cv.put("status", account.status);
-        cv.put("timestamp", account.timestamp);
+        return transitions;
+    }
+    
+    /**
+     * Get synchronization schedules from the ledger, by account identifier.
+     */
+    public Map<Integer, SyncSchedule> listSchedules() {
+        final Map<Integer, SyncSchedule> schedules = new HashMap<Integer, SyncSchedule>(
+                8);
         
+        final SQLiteDatabase db = getDatabase();
+        Cursor c = null;
+        try {
+            c = db.query(LEDGER_TABLE, LEDGER_COLUMNS, null, null, null, null,
+                null);
+            while (c.moveToNext()) {
+                final SyncSchedule schedule = readSchedule(c, 0);
+                schedules.put(schedule.accountId, schedule);
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        
+        return schedules;
+    }
+    
+    /**
+     * Get accounts which are due for a synchronization, in due order. Only
+     * due accounts are read, using the ledger index.
+     * @param dueTime accounts due before this time are returned
+     * @param schedules schedules of due accounts are added to this map
+     */
+    public List<Account> listDueAccounts(long dueTime,
+            Map<Integer, SyncSchedule> schedules) {
+        final List<Account> accounts = new ArrayList<Account>(4);
+        
+        final StringBuilder sql = new StringBuilder(256).append("SELECT ");
+        for (final String column : COLUMNS) {
+            sql.append("a.").append(column).append(", ");
+        }
+        for (final String column : LEDGER_COLUMNS) {
+            sql.append("l.").append(column).append(", ");
+        }
+        sql.setLength(sql.length() - 2);
+        sql.append(" FROM ").append(LEDGER_TABLE).append(" l JOIN ")
+                .append(ACCOUNTS_TABLE).append(" a ON a.id=l.account_id ")
+                .append("WHERE l.next_due<=? ORDER BY l.next_due");
+        
+        final SQLiteDatabase db = getDatabase();
+        final Cursor c = db.rawQuery(sql.toString(),
+            new String[] { String.valueOf(dueTime) });
+        try {
+            while (c.moveToNext()) {
+                final Account account = new Account();
+                account.id = c.getInt(0);
+                account.name = c.getString(1);
+                account.phoneNumber = c.getString(2);
+                account.login = c.getString(3);
+                account.status = c.getInt(4);
+                account.timestamp = c.getLong(5);
+                account.password = c.getString(6);
+                accounts.add(account);
+                
+                final SyncSchedule schedule = readSchedule(c, COLUMNS.length);
+                schedules.put(schedule.accountId, schedule);
+            }
+        } finally {
+            c.close();
+        }
+        return accounts;
+    }
+    
+    /**
+     * Read a schedule from {@link #LEDGER_COLUMNS}, starting at a column
+     * index.
+     */
+    private static SyncSchedule readSchedule(Cursor c, int i) {
+        final SyncSchedule schedule = new SyncSchedule();
+        schedule.accountId = c.getInt(i);
+        schedule.interval = c.getLong(i + 1);
+        schedule.nextDue = c.getLong(i + 2);
+        schedule.failures = c.getInt(i + 3);
+        schedule.lastSuccess = c.getLong(i + 4);
+        schedule.lastFailure = c.getLong(i + 5);
+        return schedule;
+    }
+    
+    /**
+     * Write synchronization schedules to the ledger, in a single transaction.
+     * Schedules of deleted accounts are ignored.
+     */
+    public void updateSchedules(Collection<SyncSchedule> schedules) {
+        if (schedules.isEmpty()) {
+            return;
+        }
+        
+        final SQLiteDatabase db = getDatabase();
+        final long waitStart = SystemClock.elapsedRealtime();
+        synchronized (LOCK) {
+            onLockAcquired(waitStart);
+            db.beginTransaction();
+            final SQLiteStatement st = db.compileStatement("UPDATE "
+                    + LEDGER_TABLE + " SET interval=?, next_due=?, "
+                    + "failures=?, last_success=?, last_failure=? "
+                    + "WHERE account_id=?");
+            try {
+                for (final SyncSchedule schedule : schedules) {
+                    st.bindLong(1, schedule.interval);
+                    st.bindLong(2, schedule.nextDue);
+                    st.bindLong(3, schedule.failures);
+                    st.bindLong(4, schedule.lastSuccess);
+                    st.bindLong(5, schedule.lastFailure);
+                    st.bindLong(6, schedule.accountId);
+                    st.execute();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                st.close();
+                db.endTransaction();
+            }
+        }
+    }
+    
+    /**
+     * Get when the next account should be synchronized. An account which was
+     * never synchronized is due immediately.
+     * @return earliest due time, or <code>-1</code> if there is no account
+     */
+    public long getNextDue() {
+        final SQLiteDatabase db = getDatabase();
+        final Cursor c = db.rawQuery("SELECT MIN(next_due) FROM "
+                + LEDGER_TABLE, null);
+        try {
+            return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+    
+    /**
+     * Delete invalid accounts, with a single statement. Earlier versions of
+     * this application did not check user input when creating an account. It
+     * was possible to create an account with an empty login (or the weird
+     * value 255).
+     * @return number of deleted accounts
+     */
+    public int deleteInvalidAccounts() {
+        final SQLiteDatabase db = getDatabase();
+        final long waitStart = SystemClock.elapsedRealtime();
+        synchronized (LOCK) {
+            onLockAcquired(waitStart);
+            int count = 0;
+            db.beginTransaction();
+            try {
+                count = db.delete(ACCOUNTS_TABLE,
+                    "login IS NULL OR TRIM(login) IN ('', '255')", null);
+                if (count != 0) {
+                    db.delete(HISTORY_TABLE, "account_id NOT IN "
+                            + "(SELECT id FROM " + ACCOUNTS_TABLE + ")", null);
+                    db.delete(LEDGER_TABLE, "account_id NOT IN "
+                            + "(SELECT id FROM " + ACCOUNTS_TABLE + ")", null);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return count;
+        }
+    }
+    
+    /**
+     * Reclaim free database pages, and update statistics used by the query
+     * planner. The database is switched to incremental vacuum the first time
+     * this method is called, with a full vacuum: later calls only reclaim a
+     * bounded number of pages.
+     */
+    public void optimize() {
+        final SQLiteDatabase db = getDatabase();
+        final long waitStart = SystemClock.elapsedRealtime();
         synchronized (LOCK) {
-            SQLiteDatabase db = null;
+            onLockAcquired(waitStart);
+            final long start = SystemClock.elapsedRealtime();
+            
+            final SQLiteStatement st = db
+                    .compileStatement("PRAGMA auto_vacuum");
+            final long autoVacuum;
             try {
-                db = dbHelper.getWritableDatabase();
-                db.beginTransaction();
+                autoVacuum = st.simpleQueryForLong();
+            } finally {
+                st.close();
+            }
+            
+            if (autoVacuum != AUTO_VACUUM_INCREMENTAL) {
+                // The new vacuum mode is only applied after a full vacuum.
+                db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+                db.execSQL("VACUUM");
+            } else {
+                // This pragma reclaims pages while its result is read.
+                final Cursor c = db.rawQuery("PRAGMA incremental_vacuum("
+                        + INCREMENTAL_VACUUM_PAGES + ")", null);
                 try {
-                    db.update(ACCOUNTS_TABLE, cv, "id=?",
-                        new String[] { String.valueOf(account.id) });
-                    db.setTransactionSuccessful();
+                    while (c.moveToNext()) {
+                    }
                 } finally {
-                    db.endTransaction();
+                    c.close();
                 }
+            }
+            db.execSQL("ANALYZE");
+            
+            if (DEBUG) {
+                Log.d(TAG, "Database optimized in "
+                        + (SystemClock.elapsedRealtime() - start) + " ms");
+            }
+        }
+    }
+    
+    /**
+     * Delete account status transitions recorded before a timestamp.
+     * Transitions for deleted accounts are deleted with their account.
+     * @return number of deleted transitions
+     */
+    public int purgeHistory(long timestamp) {
+        final SQLiteDatabase db = getDatabase();
+        final long waitStart = SystemClock.elapsedRealtime();
+        synchronized (LOCK) {
+            onLockAcquired(waitStart);
+            int count = 0;
+            db.beginTransaction();
+            try {
+                count = db.delete(HISTORY_TABLE, "timestamp<?",
+                    new String[] { String.valueOf(timestamp) });
+                db.setTransactionSuccessful();
             } finally {
-                close(db);
+                db.endTransaction();
             }
+            return count;
+        }
+    }
+    
+    /**
+     * Compact account status transitions recorded before a timestamp: the
+     * transitions of an account during a day are merged into a single
+     * transition, from the first old status to the last new status. A day
+     * ending with the same status as it started has no transition left.
+     * Compacted days are not changed by later calls.
+     * @return number of deleted transitions
+     */
+    public int compactHistory(long timestamp) {
+        final String before = String.valueOf(timestamp);
+        final String day = "timestamp/" + HISTORY_COMPACTION_PERIOD;
+        // Last transition of each account for each day: this row is kept.
+        final String lastTransitions = "SELECT MAX(id) FROM " + HISTORY_TABLE
+                + " WHERE timestamp<? GROUP BY account_id, " + day;
+        
+        final SQLiteDatabase db = getDatabase();
+        final long waitStart = SystemClock.elapsedRealtime();
+        synchronized (LOCK) {
+            onLockAcquired(waitStart);
+            final long start = SystemClock.elapsedRealtime();
+            int count = 0;
+            db.beginTransaction();
+            try {
+                db.execSQL("UPDATE " + HISTORY_TABLE + " SET old_status="
+                        + "(SELECT h.old_status FROM " + HISTORY_TABLE
+                        + " h WHERE h.account_id=" + HISTORY_TABLE
+                        + ".account_id AND h.timestamp/"
+                        + HISTORY_COMPACTION_PERIOD + "=" + HISTORY_TABLE
+                        + "." + day + " ORDER BY h.id LIMIT 1)"
+                        + " WHERE id IN (" + lastTransitions
+                        + " HAVING COUNT(*)>1)", new Object[] { before });
+                count += db.delete(HISTORY_TABLE, "timestamp<? AND id NOT IN ("
+                        + lastTransitions + ")", new String[] { before,
+                        before });
+                count += db.delete(HISTORY_TABLE,
+                    "timestamp<? AND old_status=new_status",
+                    new String[] { before });
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            
+            if (DEBUG) {
+                Log.d(TAG, "Account history compacted in "
+                        + (SystemClock.elapsedRealtime() - start) + " ms ("
+                        + count + " transition(s) deleted)");
+            }
+            return count;
+        }
+    }
+    
+    private static void bind(SQLiteStatement st, int index, String value) {
+        if (value == null) {
+            st.bindNull(index);
+        } else {
+            st.bindString(index, value);
         }
     }
     
@@ -183,7 +875,7 @@ public class AccountRepository {
      */
     private static class DbHelper extends SQLiteOpenHelper {
         public DbHelper(final Context context) {
-            super(context, "accounts.db", null, 2);
+            super(context, "accounts.db", null, 8);
         }
         
         @Override
@@ -195,6 +887,59 @@ public class AccountRepository {
                     + "status INTEGER NOT NULL DEFAULT 0, "
                     + "timestamp TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, "
                     + "name VARCHAR, phone_number VARCHAR);");
+            createHistoryTable(db);
+            createAccountIndexes(db);
+            createLedgerTable(db);
+        }
+        
+        private static void createAccountIndexes(SQLiteDatabase db) {
+            // Accounts are sorted with these indexes.
+            db.execSQL("CREATE INDEX " + ACCOUNTS_TABLE
+                    + "_phone_number_idx ON " + ACCOUNTS_TABLE
+                    + " (phone_number);");
+            db.execSQL("CREATE INDEX " + ACCOUNTS_TABLE + "_name_idx ON "
+                    + ACCOUNTS_TABLE + " (name);");
+            createLoginIndex(db);
+        }
+        
+        private static void createLoginIndex(SQLiteDatabase db) {
+            // Duplicate logins are detected with this index.
+            db.execSQL("CREATE INDEX " + ACCOUNTS_TABLE + "_login_idx ON "
+                    + ACCOUNTS_TABLE + " (login);");
+        }
+        
+        private static void createHistoryTable(SQLiteDatabase db) {
+            // The rowid is used as the primary key: rows are not larger than
+            // needed.
+            db.execSQL("CREATE TABLE " + HISTORY_TABLE
+                    + " (id INTEGER PRIMARY KEY, "
+                    + "account_id INTEGER NOT NULL, "
+                    + "old_status INTEGER NOT NULL, "
+                    + "new_status INTEGER NOT NULL, "
+                    + "timestamp INTEGER NOT NULL);");
+            db.execSQL("CREATE INDEX " + HISTORY_TABLE + "_account_idx ON "
+                    + HISTORY_TABLE + " (account_id, timestamp);");
+            db.execSQL("CREATE INDEX " + HISTORY_TABLE + "_timestamp_idx ON "
+                    + HISTORY_TABLE + " (timestamp);");
+        }
+        
+        private static void createLedgerTable(SQLiteDatabase db) {
+            // The account identifier is the primary key: there is a single
+            // row for each account, updated after each synchronization.
+            db.execSQL("CREATE TABLE " + LEDGER_TABLE
+                    + " (account_id INTEGER PRIMARY KEY, "
+                    + "interval INTEGER NOT NULL, "
+                    + "next_due INTEGER NOT NULL, "
+                    + "failures INTEGER NOT NULL DEFAULT 0, "
+                    + "last_success INTEGER NOT NULL DEFAULT 0, "
+                    + "last_failure INTEGER NOT NULL DEFAULT 0);");
+            createLedgerIndex(db);
+        }
+        
+        private static void createLedgerIndex(SQLiteDatabase db) {
+            // Due accounts are read with this index.
+            db.execSQL("CREATE INDEX " + LEDGER_TABLE + "_next_due_idx ON "
+                    + LEDGER_TABLE + " (next_due);");
         }
         
         @Override
@@ -204,6 +949,39 @@ public class AccountRepository {
             // create an account with an empty login (or the weird value 255).
             db.execSQL("DELETE FROM " + ACCOUNTS_TABLE
                     + " WHERE login=? OR login=?", new Object[] { "", "255" });
+            
+            if (oldVersion < 3) {
+                createHistoryTable(db);
+            }
+            if (oldVersion < 4) {
+                createAccountIndexes(db);
+            } else if (oldVersion < 5) {
+                createLoginIndex(db);
+            }
+            if (oldVersion < 6) {
+                createLedgerTable(db);
+            } else if (oldVersion < 8) {
+                // The schedule table is now the ledger table.
+                if (oldVersion < 7) {
+                    db.execSQL("ALTER TABLE sync_schedule ADD COLUMN "
+                            + "failures INTEGER NOT NULL DEFAULT 0;");
+                }
+                db.execSQL("ALTER TABLE sync_schedule RENAME TO "
+                        + LEDGER_TABLE + ";");
+                db.execSQL("ALTER TABLE " + LEDGER_TABLE + " ADD COLUMN "
+                        + "last_success INTEGER NOT NULL DEFAULT 0;");
+                db.execSQL("ALTER TABLE " + LEDGER_TABLE + " ADD COLUMN "
+                        + "last_failure INTEGER NOT NULL DEFAULT 0;");
+                createLedgerIndex(db);
+            }
+            if (oldVersion < 8) {
+                // Every account has a ledger row: accounts which were never
+                // synchronized are due immediately.
+                db.execSQL("INSERT INTO " + LEDGER_TABLE
+                        + " (account_id, interval, next_due) SELECT id, 0, 0"
+                        + " FROM " + ACCOUNTS_TABLE + " WHERE id NOT IN "
+                        + "(SELECT account_id FROM " + LEDGER_TABLE + ");");
+            }
         }
     }
 }
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.model;
+
+import static org.pixmob.fm2.Constants.DEBUG;
+import static org.pixmob.fm2.Constants.TAG;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pixmob.fm2.util.IOUtils;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Snapshot file of the first accounts from the account list, holding display
+ * fields only. This file is read through a memory map, without opening the
+ * database: the account list can be rendered as soon as the application is
+ * started, until accounts are read from the database.
+ * <p>
+ * A snapshot is only valid for the sort key it was written with. Passwords
+ * are never written to this file.
+ * </p>
+ * @author Pixmob
+ * @see AccountCodec
+ */
+public final class AccountSnapshot {
+    /**
+     * Maximum number of accounts in a snapshot: this is more than a screen.
+     */
+    private static final int MAX_ACCOUNTS = 100;
+    private static final String FILE_NAME = "accounts.snapshot";
+    private static final int MAGIC = 0x464d3253;
+    
+    private AccountSnapshot() {
+    }
+    
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+    
+    /**
+     * Read accounts from the snapshot file.
+     * @return accounts, or <code>null</code> if there is no valid snapshot for
+     *         this sort key
+     */
+    public static List<Account> read(Context context, String sortKey) {
+        final Snapshot snapshot = readSnapshot(context, sortKey);
+        return snapshot == null ? null : snapshot.accounts;
+    }
+    
+    /**
+     * Get the sort key of the snapshot file.
+     * @return sort key, or <code>null</code> if there is no valid snapshot
+     */
+    public static String readSortKey(Context context) {
+        final Snapshot snapshot = readSnapshot(context, null);
+        return snapshot == null ? null : snapshot.sortKey;
+    }
+    
+    /**
+     * Update accounts in the snapshot file, which must not change the account
+     * order. Accounts which are not in the snapshot are ignored.
+     */
+    public static synchronized void update(Context context,
+            Collection<Account> updatedAccounts) {
+        final Snapshot snapshot = readSnapshot(context, null);
+        if (snapshot == null) {
+            return;
+        }
+        
+        final Map<Integer, Integer> indexes = new HashMap<Integer, Integer>(
+                snapshot.accounts.size() * 2);
+        for (int i = 0; i < snapshot.accounts.size(); ++i) {
+            indexes.put(snapshot.accounts.get(i).id, i);
+        }
+        boolean updated = false;
+        for (final Account account : updatedAccounts) {
+            final Integer i = indexes.get(account.id);
+            if (i != null) {
+                snapshot.accounts.set(i, account);
+                updated = true;
+            }
+        }
+        if (updated) {
+            write(context, snapshot.accounts, snapshot.sortKey);
+        }
+    }
+    
+    /**
+     * Read the snapshot file.
+     * @param sortKey expected sort key, or <code>null</code> to accept any
+     *            sort key
+     */
+    private static Snapshot readSnapshot(Context context, String sortKey) {
+        final File file = getFile(context);
+        if (!file.exists()) {
+            return null;
+        }
+        
+        final long start = SystemClock.uptimeMillis();
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(file, "r");
+            final DataInputStream in = new DataInputStream(
+                    new ByteBufferInputStream(input.getChannel().map(
+                        MapMode.READ_ONLY, 0, input.length())));
+            if (in.readInt() != MAGIC || in.readInt() != AccountCodec.VERSION) {
+                Log.i(TAG, "Ignore account snapshot with another format");
+                return null;
+            }
+            final String snapshotSortKey = in.readUTF();
+            if (sortKey != null && !sortKey.equals(snapshotSortKey)) {
+                if (DEBUG) {
+                    Log.d(TAG, "Ignore account snapshot with another sort key");
+                }
+                return null;
+            }
+            
+            final int count = in.readInt();
+            if (count < 0 || count > MAX_ACCOUNTS) {
+                throw new IOException("Invalid account count: " + count);
+            }
+            final List<Account> accounts = new ArrayList<Account>(count);
+            for (int i = 0; i < count; ++i) {
+                accounts.add(AccountCodec.read(in));
+            }
+            
+            if (DEBUG) {
+                Log.d(TAG, "Account snapshot read in "
+                        + (SystemClock.uptimeMillis() - start) + " ms ("
+                        + count + " account(s), " + file.length() + " bytes)");
+            }
+            return new Snapshot(snapshotSortKey, accounts);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read account snapshot", e);
+            file.delete();
+            return null;
+        } finally {
+            IOUtils.close(input);
+        }
+    }
+    
+    /**
+     * Write the first accounts of an account list to the snapshot file. The
+     * previous snapshot is replaced only if the new one is fully written.
+     * @param accounts accounts sorted with the sort key
+     */
+    public static synchronized void write(Context context,
+            List<Account> accounts, String sortKey) {
+        final File file = getFile(context);
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        final int count = Math.min(accounts.size(), MAX_ACCOUNTS);
+        
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmpFile), 4096));
+            out.writeInt(MAGIC);
+            out.writeInt(AccountCodec.VERSION);
+            out.writeUTF(sortKey);
+            out.writeInt(count);
+            for (int i = 0; i < count; ++i) {
+                AccountCodec.write(out, accounts.get(i), false);
+            }
+            out.close();
+            out = null;
+            
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmpFile + " to "
+                        + file);
+            }
+            if (DEBUG) {
+                Log.d(TAG, "Account snapshot written (" + count
+                        + " account(s))");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write account snapshot", e);
+            tmpFile.delete();
+        } finally {
+            IOUtils.close(out);
+        }
+    }
+    
+    /**
+     * Delete the snapshot file.
+     */
+    public static synchronized void delete(Context context) {
+        getFile(context).delete();
+    }
+    
+    /**
+     * Accounts read from the snapshot file, with their sort key.
+     * @author Pixmob
+     */
+    private static class Snapshot {
+        public final String sortKey;
+        public final List<Account> accounts;
+        
+        public Snapshot(final String sortKey, final List<Account> accounts) {
+            this.sortKey = sortKey;
+            this.accounts = accounts;
+        }
+    }
+    
+    /**
+     * {@link InputStream} reading from a {@link ByteBuffer}.
+     * @author Pixmob
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+        
+        public ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.model;
+
+import static org.pixmob.fm2.Constants.DEBUG;
+import static org.pixmob.fm2.Constants.TAG;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Read-only {@link Account} list, for displaying a large number of accounts.
+ * Accounts are read from the database by pages, when they are accessed: only
+ * a few pages are kept in memory. A page is read with keyset paging when the
+ * previous page is known, which is the case when the list is scrolled.
+ * <p>
+ * Pages are read in a background thread: {@link #get(int)} never reads the
+ * database. An account from a page which is not read yet is
+ * <code>null</code>: the page is read, and the {@link Listener} is notified
+ * when it is available. Pages next to the accessed page are read in advance.
+ * </p>
+ * <p>
+ * Accounts from this list do not include passwords. Accounts in memory can
+ * be updated with {@link #update(Collection)}, as long as the order is the
+ * same. This list is not updated when accounts are deleted: an account may be
+ * <code>null</code> if it was deleted after this list was created.
+ * </p>
+ * @author Pixmob
+ * @see AccountRepository#listPageAfter(Account, int, String)
+ */
+public class PagedAccountList extends AbstractList<Account> implements
+        RandomAccess {
+    private static final int PAGE_SIZE = 40;
+    private static final int MAX_CACHED_PAGES = 4;
+    private static final long PAGE_READ_KEEP_ALIVE = 1000 * 30;
+    private static ExecutorService pageReadExecutor;
+    private final AccountRepository repository;
+    private final int size;
+    private final String sortKey;
+    private final Map<Integer, List<Account>> pages = new LinkedHashMap<Integer, List<Account>>(
+            MAX_CACHED_PAGES, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<Integer, List<Account>> eldest) {
+            return size() > MAX_CACHED_PAGES;
+        }
+    };
+    /**
+     * Last account of each page which was read: the next page is read after
+     * this account.
+     */
+    private final Map<Integer, Account> pageLastAccounts = new HashMap<Integer, Account>();
+    /**
+     * Pages which are being read, or which are waiting to be read.
+     */
+    private final Set<Integer> pendingPages = new HashSet<Integer>(4);
+    private final List<Integer> pageRequests = new LinkedList<Integer>();
+    private final Runnable pageReader = new Runnable() {
+        @Override
+        public void run() {
+            readPendingPages();
+        }
+    };
+    private Listener listener;
+    /**
+     * Incremented when accounts are updated: a page read before an update is
+     * read again.
+     */
+    private int updateCount;
+    private int keysetPageReads;
+    private int offsetPageReads;
+    
+    public PagedAccountList(final AccountRepository repository,
+            final int size, final String sortKey) {
+        AccountRepository.checkSortKey(sortKey);
+        this.repository = repository;
+        this.size = size;
+        this.sortKey = sortKey;
+    }
+    
+    private static synchronized ExecutorService getPageReadExecutor() {
+        if (pageReadExecutor == null) {
+            // A single thread: pages are read in order, so that a page can
+            // be read after the last account of the previous page.
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                    PAGE_READ_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new PageReadThreadFactory());
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+                // The thread is released when the list is not scrolled.
+                executor.allowCoreThreadTimeOut(true);
+            }
+            pageReadExecutor = executor;
+        }
+        return pageReadExecutor;
+    }
+    
+    /**
+     * Set the listener notified when a page is read. The listener is called
+     * from a background thread.
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+    
+    @Override
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Get an account. If the page containing this account is not read yet,
+     * <code>null</code> is returned: the page is read in a background thread.
+     */
+    @Override
+    public synchronized Account get(int location) {
+        checkLocation(location);
+        
+        final int pageIndex = location / PAGE_SIZE;
+        final List<Account> page = pages.get(pageIndex);
+        
+        // Pages next to the accessed page are read before they are
+        // displayed.
+        final int pageLocation = location % PAGE_SIZE;
+        if (pageLocation >= PAGE_SIZE / 2) {
+            requestPage(pageIndex + 1);
+        } else {
+            requestPage(pageIndex - 1);
+        }
+        
+        if (page == null) {
+            requestPage(pageIndex);
+            return null;
+        }
+        return pageLocation < page.size() ? page.get(pageLocation) : null;
+    }
+    
+    /**
+     * Check if the page containing an account is read.
+     */
+    public synchronized boolean isLoaded(int location) {
+        checkLocation(location);
+        return pages.containsKey(location / PAGE_SIZE);
+    }
+    
+    /**
+     * Read the page containing an account, in the calling thread. This
+     * method should not be called from the main thread.
+     */
+    public void load(int location) {
+        checkLocation(location);
+        final int pageIndex = location / PAGE_SIZE;
+        int readUpdateCount;
+        do {
+            synchronized (this) {
+                if (pages.containsKey(pageIndex)) {
+                    return;
+                }
+                readUpdateCount = updateCount;
+            }
+        } while (!onPageRead(pageIndex, readPage(pageIndex), readUpdateCount));
+    }
+    
+    /**
+     * Update accounts in memory. Updated accounts must be sorted at the same
+     * position: this list must be created again if a sort key value was
+     * changed. Accounts which are not in memory will be read from the
+     * database.
+     */
+    public synchronized void update(Collection<Account> updatedAccounts) {
+        ++updateCount;
+        
+        // Accounts in memory are patched in a single pass.
+        final Map<Integer, Account> updatedById = new HashMap<Integer, Account>(
+                updatedAccounts.size() * 2);
+        for (final Account account : updatedAccounts) {
+            updatedById.put(account.id, account);
+        }
+        int updated = 0;
+        for (final List<Account> page : pages.values()) {
+            for (int i = 0; i < page.size(); ++i) {
+                final Account account = updatedById.get(page.get(i).id);
+                if (account != null) {
+                    page.set(i, toSummary(account));
+                    ++updated;
+                }
+            }
+        }
+        for (final Map.Entry<Integer, Account> e : pageLastAccounts
+                .entrySet()) {
+            final Account account = updatedById.get(e.getValue().id);
+            if (account != null) {
+                e.setValue(toSummary(account));
+            }
+        }
+        if (DEBUG) {
+            Log.d(TAG, updated + " account(s) updated in account pages");
+        }
+    }
+    
+    /**
+     * Copy an account, without its password.
+     */
+    private static Account toSummary(Account account) {
+        final Account summary = new Account();
+        summary.id = account.id;
+        summary.name = account.name;
+        summary.phoneNumber = account.phoneNumber;
+        summary.login = account.login;
+        summary.status = account.status;
+        summary.timestamp = account.timestamp;
+        return summary;
+    }
+    
+    private void checkLocation(int location) {
+        if (location < 0 || location >= size) {
+            throw new IndexOutOfBoundsException("Invalid location: "
+                    + location + " (size: " + size + ")");
+        }
+    }
+    
+    private void requestPage(int pageIndex) {
+        if (pageIndex < 0 || pageIndex * PAGE_SIZE >= size
+                || pages.containsKey(pageIndex)
+                || !pendingPages.add(pageIndex)) {
+            return;
+        }
+        pageRequests.add(pageIndex);
+        getPageReadExecutor().execute(pageReader);
+    }
+    
+    private void readPendingPages() {
+        final int pageIndex;
+        final int readUpdateCount;
+        synchronized (this) {
+            if (pageRequests.isEmpty()) {
+                return;
+            }
+            pageIndex = pageRequests.remove(0);
+            readUpdateCount = updateCount;
+        }
+        
+        final List<Account> page;
+        try {
+            page = readPage(pageIndex);
+        } catch (RuntimeException e) {
+            // The page will be read again when it is accessed.
+            Log.w(TAG, "Failed to read account page " + pageIndex, e);
+            synchronized (this) {
+                pendingPages.remove(pageIndex);
+            }
+            return;
+        }
+        if (!onPageRead(pageIndex, page, readUpdateCount)) {
+            // Accounts were updated while this page was read.
+            synchronized (this) {
+                pageRequests.add(0, pageIndex);
+            }
+            getPageReadExecutor().execute(pageReader);
+        }
+    }
+    
+    /**
+     * Store a page which was read.
+     * @return <code>false</code> if accounts were updated while the page was
+     *         read: the page is not stored, and must be read again
+     */
+    private boolean onPageRead(int pageIndex, List<Account> page,
+            int readUpdateCount) {
+        final Listener l;
+        synchronized (this) {
+            if (readUpdateCount != updateCount) {
+                return false;
+            }
+            pendingPages.remove(pageIndex);
+            pages.put(pageIndex, page);
+            if (!page.isEmpty()) {
+                pageLastAccounts.put(pageIndex, page.get(page.size() - 1));
+            }
+            l = listener;
+        }
+        if (l != null) {
+            l.onPageLoaded(this);
+        }
+        return true;
+    }
+    
+    private List<Account> readPage(int pageIndex) {
+        final List<Account> page;
+        if (pageIndex == 0) {
+            page = repository.listPageAfter(null, PAGE_SIZE, sortKey);
+            ++keysetPageReads;
+        } else {
+            final Account previousPageLastAccount;
+            synchronized (this) {
+                previousPageLastAccount = pageLastAccounts.get(pageIndex - 1);
+            }
+            if (previousPageLastAccount != null) {
+                page = repository.listPageAfter(previousPageLastAccount,
+                    PAGE_SIZE, sortKey);
+                ++keysetPageReads;
+            } else {
+                // The list was not scrolled to this page.
+                page = repository.listPageAt(pageIndex * PAGE_SIZE,
+                    PAGE_SIZE, sortKey);
+                ++offsetPageReads;
+            }
+        }
+        
+        if (DEBUG) {
+            Log.d(TAG, "Read account page " + pageIndex + " (" + page.size()
+                    + " account(s)); page reads: " + keysetPageReads
+                    + " keyset, " + offsetPageReads + " offset");
+        }
+        return page;
+    }
+    
+    /**
+     * Listener notified when a page of a {@link PagedAccountList} is read.
+     * @author Pixmob
+     */
+    public static interface Listener {
+        /**
+         * A page was read: accounts from this page are available.
+         */
+        void onPageLoaded(PagedAccountList accounts);
+    }
+    
+    /**
+     * {@link ThreadFactory} for reading pages with a background priority.
+     * @author Pixmob
+     */
+    private static class PageReadThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Runnable wrapper = new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            };
+            return new Thread(wrapper, "FM2/AccountPages-"
+                    + threadCount.incrementAndGet());
+        }
+    }
+}
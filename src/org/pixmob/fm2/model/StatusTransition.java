@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.model;
+
+/**
+ * This class stores a status change of an user account. A transition is
+ * recorded each time an account status is updated with a different value.
+ * @author Pixmob
+ * @see AccountRepository#listTransitionsSince(long)
+ */
+public final class StatusTransition {
+    /**
+     * Account database identifier.
+     */
+    public int accountId;
+    /**
+     * Account status before this transition.
+     */
+    public int oldStatus;
+    /**
+     * Account status after this transition.
+     */
+    public int newStatus;
+    /**
+     * When was this transition recorded?
+     */
+    public long timestamp;
+    
+    @Override
+    public String toString() {
+        return "StatusTransition[accountId=" + accountId + ", oldStatus="
+                + oldStatus + ", newStatus=" + newStatus + ", timestamp="
+                + timestamp + "]";
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.model;
+
+import java.util.Random;
+
+/**
+ * This class stores when an user account should be synchronized, and the
+ * results of its last synchronizations: this is an entry of the
+ * synchronization ledger. The synchronization interval adapts to the account:
+ * it is doubled each time the account is synchronized without any change,
+ * and it is reset to the minimum interval when the account changes. Stable
+ * accounts are rarely synchronized, whereas accounts being activated are
+ * often synchronized.
+ * <p>
+ * When a synchronization fails, the account is synchronized again after a
+ * delay which is doubled after each consecutive failure. Half of this delay
+ * is random, so that failed accounts are not synchronized at the same time.
+ * </p>
+ * @author Pixmob
+ * @see AccountRepository#listSchedules()
+ * @see AccountRepository#listDueAccounts(long, java.util.Map)
+ */
+public final class SyncSchedule {
+    /**
+     * The synchronization interval is never longer than the minimum interval
+     * multiplied by this factor.
+     */
+    private static final int MAX_BACKOFF_FACTOR = 32;
+    /**
+     * The synchronization interval is never longer than one day, unless the
+     * minimum interval is longer.
+     */
+    private static final long MAX_INTERVAL = 1000L * 60 * 60 * 24;
+    /**
+     * Delay before synchronizing an account after its first failure.
+     */
+    private static final long RETRY_DELAY = 1000 * 60 * 3;
+    /**
+     * Account database identifier.
+     */
+    public int accountId;
+    /**
+     * Current synchronization interval (ms).
+     */
+    public long interval;
+    /**
+     * When should this account be synchronized?
+     */
+    public long nextDue;
+    /**
+     * Number of consecutive synchronization failures.
+     */
+    public int failures;
+    /**
+     * When was this account last synchronized? <code>0</code> means never.
+     */
+    public long lastSuccess;
+    /**
+     * When did the last synchronization of this account fail?
+     * <code>0</code> means never.
+     */
+    public long lastFailure;
+    
+    public SyncSchedule() {
+    }
+    
+    public SyncSchedule(final int accountId) {
+        this.accountId = accountId;
+    }
+    
+    /**
+     * Compute the next synchronization of this account, after a successful
+     * synchronization.
+     * @param changed <code>true</code> if the account changed
+     * @param minInterval minimum synchronization interval (ms), set by the
+     *            user
+     * @param now synchronization time
+     */
+    public void onSynchronized(boolean changed, long minInterval, long now) {
+        final long maxInterval = getMaxInterval(minInterval);
+        failures = 0;
+        lastSuccess = now;
+        if (changed || interval == 0) {
+            interval = minInterval;
+        } else {
+            interval = Math.min(interval * 2, maxInterval);
+        }
+        // The minimum interval may have been changed by the user.
+        interval = Math.max(minInterval, Math.min(interval, maxInterval));
+        nextDue = now + interval;
+    }
+    
+    /**
+     * Compute the next synchronization of this account, after a failed
+     * synchronization. The synchronization interval is not changed.
+     * @param minInterval minimum synchronization interval (ms), set by the
+     *            user
+     * @param now synchronization time
+     */
+    public void onSyncFailed(long minInterval, long now, Random random) {
+        ++failures;
+        lastFailure = now;
+        final long maxDelay = Math.min(RETRY_DELAY << Math.min(failures - 1,
+            16), getMaxInterval(minInterval));
+        nextDue = now + maxDelay / 2
+                + (long) (random.nextDouble() * maxDelay / 2);
+    }
+    
+    private static long getMaxInterval(long minInterval) {
+        return Math.max(minInterval, Math.min(minInterval * MAX_BACKOFF_FACTOR,
+            MAX_INTERVAL));
+    }
+    
+    @Override
+    public String toString() {
+        return "SyncSchedule[accountId=" + accountId + ", interval="
+                + interval + ", nextDue=" + nextDue + ", failures="
+                + failures + ", lastSuccess=" + lastSuccess + ", lastFailure="
+                + lastFailure + "]";
+    }
+}
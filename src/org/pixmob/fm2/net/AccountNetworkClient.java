@@ -18,26 +18,39 @@ package org.pixmob.fm2.net;
 import static org.pixmob.fm2.Constants.DEBUG;
 import static org.pixmob.fm2.Constants.TAG;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.FilterReader;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Reader;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.CRC32;
 
 import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 import org.pixmob.fm2.model.Account;
 import org.pixmob.fm2.util.HttpUtils;
 import org.pixmob.fm2.util.IOUtils;
 
 import android.content.Context;
+import android.os.Build;
+import android.os.Process;
 import android.util.Log;
 
 /**
@@ -46,7 +59,16 @@ import android.util.Log;
  */
 public class AccountNetworkClient {
     private static final String CHARSET = "UTF-8";
+    private static final String ACCOUNT_DATA_URI = "https://mobile.free.fr/moncompte/index.php?page=commande&produit=sim";
+    private static final int DIGIT_COUNT = 10;
+    private static final int DIGIT_FETCH_THREADS = 4;
+    private static final long DIGIT_FETCH_KEEP_ALIVE = 1000 * 30;
+    private static final int PAGE_COPY_CAPACITY = 1024 * 16;
+    private static final AtomicLong DIGIT_FETCHES_SAVED = new AtomicLong();
     private static final long[] DIGIT_CRCS = new long[10];
+    private static final Map<Long, String> DIGITS_BY_CRC = new HashMap<Long, String>(
+            16);
+    private static ExecutorService digitFetchExecutor;
     
     static {
         DIGIT_CRCS[0] = 3376728150L;
@@ -59,45 +81,149 @@ public class AccountNetworkClient {
         DIGIT_CRCS[7] = 40629710L;
         DIGIT_CRCS[8] = 271195857L;
         DIGIT_CRCS[9] = 4291279220L;
+        
+        // Digit images are identified by their CRC.
+        for (int i = 0; i < DIGIT_CRCS.length; ++i) {
+            DIGITS_BY_CRC.put(DIGIT_CRCS[i], String.valueOf(i));
+        }
     }
-    
     private final Context context;
+    private final SessionStore sessionStore;
+    private boolean concurrentDigitFetch = true;
     
     public AccountNetworkClient(final Context context) {
         this.context = context;
+        sessionStore = new SessionStore(context);
     }
     
     /**
-     * Connect to the Free Mobile website and get account updates.
+     * Enable or disable concurrent digit image downloads when a login is
+     * encoded. This setting is enabled by default.
+     */
+    public void setConcurrentDigitFetch(boolean concurrentDigitFetch) {
+        this.concurrentDigitFetch = concurrentDigitFetch;
+    }
+    
+    /**
+     * Get the executor for digit image downloads. This executor is shared by
+     * every login encoding: the number of download threads is bounded, even
+     * if accounts are synchronized in parallel.
+     */
+    private static synchronized ExecutorService getDigitFetchExecutor() {
+        if (digitFetchExecutor == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    DIGIT_FETCH_THREADS, DIGIT_FETCH_THREADS,
+                    DIGIT_FETCH_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new DigitFetchThreadFactory());
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+                // Idle threads are released between synchronizations.
+                executor.allowCoreThreadTimeOut(true);
+            }
+            digitFetchExecutor = executor;
+        }
+        return digitFetchExecutor;
+    }
+    
+    /**
+     * Get the number of digit image downloads which were not required for
+     * encoding logins, since this process started.
+     */
+    public static long getDigitFetchesSaved() {
+        return DIGIT_FETCHES_SAVED.get();
+    }
+    
+    /**
+     * Connect to the Free Mobile website and get account updates. An
+     * {@link AccountRejectedException} is thrown if the account login is
+     * invalid, or if its credentials are rejected.
      */
     public void update(Account account) throws IOException {
         // FIXME Remove this when the nasty bug about "weird" accounts is fixed.
-        if (account.login.length() < 8) {
-            throw new IOException("Invalid user: " + account.login + " ["
-                    + account.id + "]");
+        if (account.login.length() < Account.MIN_LOGIN_LENGTH) {
+            throw new AccountRejectedException("Invalid user: "
+                    + account.login + " [" + account.id + "]");
         }
         
+        synchronized (SessionStore.getLock(account.login)) {
+            doUpdate(account);
+        }
+    }
+    
+    private void doUpdate(Account account) throws IOException {
         final Set<String> cookies = new HashSet<String>(4);
+        if (sessionStore.get(account.login, cookies)) {
+            // The account page is used as a session probe: if the session is
+            // still valid, account data is read with a single request.
+            if (fetchAccountData(account, cookies, true, null)) {
+                sessionStore.put(account.login, cookies);
+                sessionStore.onSessionHit();
+                
+                account.timestamp = System.currentTimeMillis();
+                Log.i(TAG, "User " + account.login + " has status "
+                        + account.status + " (session reused)");
+                return;
+            }
+            
+            Log.i(TAG, "Session expired for user " + account.login);
+            sessionStore.remove(account.login);
+            cookies.clear();
+        }
+        sessionStore.onSessionMiss();
+        
         if (!authenticate(account, cookies)) {
-            throw new IOException("Authentication failed for user "
-                    + account.login);
+            throw new AccountRejectedException(
+                    "Authentication failed for user " + account.login);
         }
         
-        final File accountDataFile = fetchAccountData(account.login, cookies);
-        logout(account.login, cookies);
-        try {
-            parseAccountData(accountDataFile, account);
-            Log.i(TAG, "User " + account.login + " has status "
-                    + account.status);
-        } finally {
-            accountDataFile.delete();
+        final StringBuilder page = new StringBuilder(PAGE_COPY_CAPACITY);
+        final boolean found = fetchAccountData(account, cookies, false, page);
+        
+        // The session is not closed: it will be used by the next
+        // synchronization.
+        sessionStore.put(account.login, cookies);
+        
+        if (!found) {
+            // The page layout is not the expected one: the page which was
+            // read is parsed with Jsoup.
+            Log.w(TAG, "Streaming extraction failed for user " + account.login
+                    + ": using Jsoup");
+            parseAccountData(page.toString(), account);
+        }
+        
+        account.timestamp = System.currentTimeMillis();
+        Log.i(TAG, "User " + account.login + " has status " + account.status);
+    }
+    
+    /**
+     * Get an authenticated session for an account. A session opened by a
+     * synchronization is reused: if this account is being synchronized, this
+     * method waits for the synchronization session. Session cookies are added
+     * in <code>cookies</code>.
+     */
+    public void openSession(Account account, Set<String> cookies)
+            throws IOException {
+        synchronized (SessionStore.getLock(account.login)) {
+            if (sessionStore.get(account.login, cookies)) {
+                sessionStore.onSessionHit();
+                Log.i(TAG, "Session reused for user " + account.login);
+                return;
+            }
+            sessionStore.onSessionMiss();
+            
+            if (!authenticate(account, cookies)) {
+                throw new AccountRejectedException(
+                        "Authentication failed for user " + account.login);
+            }
+            sessionStore.put(account.login, cookies);
         }
     }
     
     /**
      * Authenticate an account. Authentication cookies are added in
      * <code>cookies</code>.
-     * @return <code>true</code> if authentication was successful
+     * @return <code>true</code> if authentication was successful,
+     *         <code>false</code> if the credentials were rejected
      */
     public boolean authenticate(Account account, Set<String> cookies)
             throws IOException {
@@ -120,6 +246,10 @@ public class AccountNetworkClient {
             if (DEBUG) {
                 Log.d(TAG, "Got response: " + sc);
             }
+            if (sc >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                throw new IOException("Authentication failed for user "
+                        + account.login + ": server error " + sc);
+            }
             if (sc != HttpURLConnection.HTTP_MOVED_TEMP
                     && sc != HttpURLConnection.HTTP_OK) {
                 return false;
@@ -127,6 +257,7 @@ public class AccountNetworkClient {
             
             Log.i(TAG, "User " + account.login + " authenticated");
             HttpUtils.readCookies(conn, cookies);
+            HttpUtils.consumeResponse(conn);
         } finally {
             conn.disconnect();
         }
@@ -151,12 +282,14 @@ public class AccountNetworkClient {
             }
             
             HttpUtils.readCookies(conn, cookies);
+            HttpUtils.consumeResponse(conn);
         } finally {
             conn.disconnect();
         }
         
         try {
-            final Map<String, String> cipherMap = fetchCipherMap(cookies);
+            final Map<String, String> cipherMap = fetchCipherMap(
+                account.login, cookies);
             if (DEBUG) {
                 Log.d(TAG, "Cipher map for user " + account.login + ": "
                         + cipherMap);
@@ -191,57 +324,151 @@ public class AccountNetworkClient {
         }
     }
     
-    private Map<String, String> fetchCipherMap(Set<String> cookies)
+    private Map<String, String> fetchCipherMap(String userLogin,
+            Set<String> cookies) throws IOException {
+        // Only the digits used by the login are required.
+        final Set<String> loginDigits = new HashSet<String>(DIGIT_COUNT);
+        final int loginLen = userLogin.length();
+        for (int i = 0; i < loginLen; ++i) {
+            loginDigits.add(String.valueOf(userLogin.charAt(i)));
+        }
+        
+        final Map<String, String> cipherMap = new HashMap<String, String>(
+                DIGIT_COUNT);
+        final int fetchCount;
+        if (concurrentDigitFetch) {
+            fetchCount = fetchCipherMapConcurrently(cookies, loginDigits,
+                cipherMap);
+        } else {
+            fetchCount = fetchCipherMapSequentially(cookies, loginDigits,
+                cipherMap);
+        }
+        
+        final int fetchesSaved = DIGIT_COUNT - fetchCount;
+        DIGIT_FETCHES_SAVED.addAndGet(fetchesSaved);
+        if (DEBUG) {
+            Log.d(TAG, "Digit images downloaded for user " + userLogin + ": "
+                    + fetchCount + " (saved: " + fetchesSaved + ", total saved: "
+                    + DIGIT_FETCHES_SAVED.get() + ")");
+        }
+        
+        return cipherMap;
+    }
+    
+    /**
+     * Download digit images one after the other, until every digit from the
+     * login is known.
+     * @return number of downloaded images
+     */
+    private int fetchCipherMapSequentially(Set<String> cookies,
+            Set<String> loginDigits, Map<String, String> cipherMap)
             throws IOException {
-        final Map<String, String> cipherMap = new HashMap<String, String>(10);
-        final File temp = new File(context.getCacheDir(), "digit.png");
         final byte[] buf = new byte[2048];
         final CRC32 crc = new CRC32();
         
-        for (int pos = 0; pos < 10; ++pos) {
-            final String uri = "https://mobile.free.fr/moncompte/chiffre.php?pos="
-                    + pos;
-            HttpUtils.downloadToFile(context, uri, cookies, temp);
-            
-            final InputStream input = new FileInputStream(temp);
-            try {
-                for (int bytesRead; (bytesRead = input.read(buf)) != -1;) {
-                    crc.update(buf, 0, bytesRead);
-                }
-            } finally {
-                IOUtils.close(input);
-                temp.delete();
+        int pos = 0;
+        for (; pos < DIGIT_COUNT
+                && !cipherMap.keySet().containsAll(loginDigits); ++pos) {
+            // The digit image is not stored: its CRC is computed while the
+            // image is downloaded.
+            final long c = HttpUtils.computeChecksum(context, getDigitUri(pos),
+                cookies, crc, buf);
+            cipherMap.put(getDigit(c, pos), String.valueOf(pos));
+        }
+        
+        return pos;
+    }
+    
+    /**
+     * Download digit images in parallel. Pending downloads are canceled as
+     * soon as every digit from the login is known.
+     * @return number of started downloads
+     */
+    private int fetchCipherMapConcurrently(Set<String> cookies,
+            Set<String> loginDigits, Map<String, String> cipherMap)
+            throws IOException {
+        final CompletionService<DigitFetch> completionService = new ExecutorCompletionService<DigitFetch>(
+                getDigitFetchExecutor());
+        final List<DigitFetch> fetches = new ArrayList<DigitFetch>(DIGIT_COUNT);
+        final List<Future<DigitFetch>> futures = new ArrayList<Future<DigitFetch>>(
+                DIGIT_COUNT);
+        
+        try {
+            for (int pos = 0; pos < DIGIT_COUNT; ++pos) {
+                final DigitFetch fetch = new DigitFetch(pos, cookies);
+                fetches.add(fetch);
+                futures.add(completionService.submit(fetch));
             }
             
-            final long c = crc.getValue();
-            boolean found = false;
-            for (int i = 0; !found && i < DIGIT_CRCS.length; ++i) {
-                if (c == DIGIT_CRCS[i]) {
-                    cipherMap.put(String.valueOf(i), String.valueOf(pos));
-                    found = true;
-                }
+            for (int i = 0; i < DIGIT_COUNT
+                    && !cipherMap.keySet().containsAll(loginDigits); ++i) {
+                final DigitFetch fetch = getDigitFetch(completionService.take());
+                cipherMap.put(fetch.digit, String.valueOf(fetch.pos));
             }
-            
-            if (!found) {
-                throw new IOException("Unknown digit CRC: " + c + "; pos="
-                        + pos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Digit download interrupted");
+        } finally {
+            for (final Future<DigitFetch> future : futures) {
+                future.cancel(true);
+            }
+            for (final DigitFetch fetch : fetches) {
+                fetch.abort();
             }
-            
-            crc.reset();
         }
         
-        return cipherMap;
+        int fetchCount = 0;
+        for (final DigitFetch fetch : fetches) {
+            if (fetch.isStarted()) {
+                ++fetchCount;
+            }
+        }
+        return fetchCount;
     }
     
-    private File fetchAccountData(String userLogin, Set<String> cookies)
-            throws IOException {
-        Log.i(TAG, "Fetching status for user " + userLogin);
+    private static DigitFetch getDigitFetch(Future<DigitFetch> future)
+            throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            final IOException ioe = new IOException("Digit download failed");
+            ioe.initCause(cause);
+            throw ioe;
+        }
+    }
+    
+    private static String getDigitUri(int pos) {
+        return "https://mobile.free.fr/moncompte/chiffre.php?pos=" + pos;
+    }
+    
+    private static String getDigit(long crc, int pos) throws IOException {
+        final String digit = DIGITS_BY_CRC.get(crc);
+        if (digit == null) {
+            throw new IOException("Unknown digit CRC: " + crc + "; pos=" + pos);
+        }
+        return digit;
+    }
+    
+    /**
+     * Read account data while the account page is downloaded. The download
+     * stops as soon as every field is found. When the session is probed, an
+     * unexpected response is not an error: this method returns
+     * <code>false</code>.
+     * @param page if not <code>null</code>, the page is copied to this
+     *            buffer: if account data is not found, the whole page is
+     *            copied
+     * @return <code>true</code> if account data was found
+     */
+    private boolean fetchAccountData(Account account, Set<String> cookies,
+            boolean probe, StringBuilder page) throws IOException {
+        Log.i(TAG, "Fetching status for user " + account.login);
         
-        final HttpURLConnection conn = HttpUtils
-                .newRequest(
-                    context,
-                    "https://mobile.free.fr/moncompte/index.php?page=commande&produit=sim",
-                    cookies);
+        final HttpURLConnection conn = HttpUtils.newRequest(context,
+            ACCOUNT_DATA_URI, cookies);
         try {
             conn.connect();
             final int sc = conn.getResponseCode();
@@ -249,93 +476,45 @@ public class AccountNetworkClient {
                 Log.d(TAG, "Got response: " + sc);
             }
             if (sc != HttpURLConnection.HTTP_OK) {
+                if (probe) {
+                    return false;
+                }
                 throw new IOException("Status update failed");
             }
             
             HttpUtils.readCookies(conn, cookies);
             
-            final File outputDir = context.getCacheDir();
-            final File outputFile = new File(outputDir, "account_" + userLogin
-                    + ".html");
-            IOUtils.writeToFile(HttpUtils.getInputStream(conn), outputFile);
-            
-            if (DEBUG) {
-                Log.d(TAG,
-                    "Output written to file: " + outputFile.getAbsolutePath());
-            }
-            
-            return outputFile;
-        } finally {
-            conn.disconnect();
-        }
-    }
-    
-    private void logout(String userLogin, Set<String> cookies)
-            throws IOException {
-        Log.i(TAG, "Closing session for user " + userLogin);
-        final HttpURLConnection conn = HttpUtils.newRequest(context,
-            "https://mobile.free.fr/moncompte/index.php?act=logout", cookies);
-        try {
-            conn.connect();
-            final int sc = conn.getResponseCode();
-            if (DEBUG) {
-                Log.d(TAG, "Got response: " + sc);
+            final Reader reader = page == null ? HttpUtils.getReader(conn,
+                CHARSET) : new CopyingReader(HttpUtils.getReader(conn,
+                CHARSET), page);
+            try {
+                if (AccountPageParser.parse(reader, account)) {
+                    return true;
+                }
+                if (page != null) {
+                    // The page copy is completed, for another parser.
+                    final char[] buf = new char[1024];
+                    while (reader.read(buf) != -1) {
+                    }
+                }
+                return false;
+            } finally {
+                // Reading may have stopped before the end of the page.
+                HttpUtils.consumeResponse(conn);
+                IOUtils.close(reader);
             }
         } finally {
             conn.disconnect();
         }
     }
     
-    private void parseAccountData(File accountDataFile, Account account)
+    private void parseAccountData(String page, Account account)
             throws IOException {
         try {
-            final Document doc = Jsoup.parse(accountDataFile, null);
-            final Elements h4Nodes = doc.select("h4[class]");
-            final int h4NodesLen = h4Nodes.size();
-            
-            boolean statusFound = false;
-            account.status = 0;
-            
-            for (int i = 0; i < h4NodesLen; ++i) {
-                final Element elem = h4Nodes.get(i);
-                if (elem.hasClass("actif1") || elem.hasClass("inactif1")) {
-                    statusFound = true;
-                }
-                
-                if (elem.hasClass("actif1")) {
-                    account.status += 1;
-                }
-            }
-            if (!statusFound) {
+            if (!AccountPageParser.parse(Jsoup.parse(page), account)) {
                 throw new IOException("No account data found for user "
                         + account.login);
             }
-            
-            final Elements produitNodes = doc.select("td[class]");
-            for (final Element elem : produitNodes) {
-                if (elem.hasClass("produit")) {
-                    final String text = elem.text();
-                    final int i = text.indexOf("Forfait : ");
-                    if (i != -1) {
-                        account.name = text
-                                .substring(i + "Forfait : ".length()).trim();
-                    }
-                    
-                    final int j = text.indexOf("Numéro : ");
-                    if (j != -1) {
-                        final int k = text.indexOf(" (Numéro", j);
-                        if (k != -1) {
-                            account.phoneNumber = text.substring(
-                                j + "Numéro : ".length(), k).trim();
-                        } else {
-                            account.phoneNumber = text.substring(
-                                j + "Numéro : ".length()).trim();
-                        }
-                    }
-                }
-            }
-            
-            account.timestamp = System.currentTimeMillis();
         } catch (IOException e) {
             throw e;
         } catch (Exception e) {
@@ -345,4 +524,123 @@ public class AccountNetworkClient {
             throw ioe;
         }
     }
+    
+    /**
+     * Task for downloading a digit image. A download can be aborted, even if
+     * it is in progress.
+     * @author Pixmob
+     */
+    private class DigitFetch implements Callable<DigitFetch> {
+        public final int pos;
+        public String digit;
+        private final Set<String> cookies;
+        private HttpURLConnection conn;
+        private boolean aborted;
+        
+        public DigitFetch(final int pos, final Set<String> cookies) {
+            this.pos = pos;
+            this.cookies = cookies;
+        }
+        
+        @Override
+        public DigitFetch call() throws IOException {
+            final HttpURLConnection newConn = HttpUtils.newRequest(context,
+                getDigitUri(pos), cookies);
+            if (!start(newConn)) {
+                throw new InterruptedIOException("Digit download aborted");
+            }
+            
+            final long c = HttpUtils.computeChecksum(newConn, new CRC32(),
+                new byte[2048]);
+            digit = getDigit(c, pos);
+            return this;
+        }
+        
+        private synchronized boolean start(HttpURLConnection newConn) {
+            if (aborted) {
+                return false;
+            }
+            conn = newConn;
+            return true;
+        }
+        
+        public synchronized boolean isStarted() {
+            return conn != null;
+        }
+        
+        public synchronized void abort() {
+            aborted = true;
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * {@link Reader} copying every character read to a buffer.
+     * @author Pixmob
+     */
+    private static class CopyingReader extends FilterReader {
+        private final StringBuilder copy;
+        
+        public CopyingReader(final Reader in, final StringBuilder copy) {
+            super(in);
+            this.copy = copy;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            final int c = super.read();
+            if (c != -1) {
+                copy.append((char) c);
+            }
+            return c;
+        }
+        
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            final int n = super.read(cbuf, off, len);
+            if (n > 0) {
+                copy.append(cbuf, off, n);
+            }
+            return n;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped characters must be copied too.
+            final char[] buf = new char[(int) Math.min(n, 1024)];
+            long skipped = 0;
+            while (skipped < n) {
+                final int count = read(buf, 0, (int) Math.min(n - skipped,
+                    buf.length));
+                if (count == -1) {
+                    break;
+                }
+                skipped += count;
+            }
+            return skipped;
+        }
+    }
+    
+    /**
+     * Factory for digit download threads, running with a background priority.
+     * @author Pixmob
+     */
+    private static class DigitFetchThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Runnable wrapper = new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            };
+            return new Thread(wrapper, "FM2/DigitFetch-"
+                    + threadCount.incrementAndGet());
+        }
+    }
 }
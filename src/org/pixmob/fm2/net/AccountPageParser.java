@@ -0,0 +1,474 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.net;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Entities;
+import org.jsoup.select.Elements;
+import org.pixmob.fm2.model.Account;
+
+/**
+ * Extract account data from the account page
+ * (<code>index.php?page=commande</code>). The page can be read from a stream,
+ * in a single pass: reading stops as soon as every field is found. The same
+ * data can be extracted from a Jsoup {@link Document}, which is slower but
+ * more tolerant with unexpected page layouts.
+ * @author Pixmob
+ */
+public final class AccountPageParser {
+    /**
+     * Number of status steps shown on the account page.
+     */
+    private static final int STATUS_STEPS = 3;
+    private static final String CONTRACT_PREFIX = "Forfait : ";
+    private static final String PHONE_NUMBER_PREFIX = "Numéro : ";
+    private static final String PHONE_NUMBER_SUFFIX = " (Numéro";
+    
+    /**
+     * Inline elements do not add whitespace to the text of their parent,
+     * unlike other elements.
+     */
+    private static final Set<String> INLINE_TAGS = new HashSet<String>(
+            Arrays.asList("a", "abbr", "acronym", "b", "bdo", "big", "cite",
+                "code", "dfn", "em", "font", "i", "img", "input", "kbd",
+                "label", "q", "s", "samp", "select", "small", "span",
+                "strike", "strong", "sub", "sup", "textarea", "tt", "u",
+                "var"));
+    
+    private final Reader reader;
+    private final char[] buf = new char[2048];
+    private int bufPos;
+    private int bufLen;
+    
+    private final StringBuilder tagName = new StringBuilder(8);
+    private final StringBuilder attrName = new StringBuilder(8);
+    private final StringBuilder attrValue = new StringBuilder(32);
+    private final StringBuilder entity = new StringBuilder(8);
+    private String tagClass;
+    private boolean endTag;
+    
+    private StringBuilder productText;
+    private int productDepth;
+    
+    private int statusMarkers;
+    private int status;
+    private String name;
+    private String phoneNumber;
+    
+    private AccountPageParser(final Reader reader) {
+        this.reader = reader;
+    }
+    
+    /**
+     * Read account data from a stream. Account fields are updated only if
+     * account data is found in the page.
+     * @return <code>true</code> if account data was found
+     */
+    public static boolean parse(Reader reader, Account account)
+            throws IOException {
+        final AccountPageParser parser = new AccountPageParser(reader);
+        parser.parse();
+        if (parser.statusMarkers == 0) {
+            return false;
+        }
+        
+        account.status = parser.status;
+        if (parser.name != null) {
+            account.name = parser.name;
+        }
+        if (parser.phoneNumber != null) {
+            account.phoneNumber = parser.phoneNumber;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Read account data from a Jsoup document.
+     * @return <code>true</code> if account data was found
+     */
+    public static boolean parse(Document doc, Account account) {
+        final Elements h4Nodes = doc.select("h4[class]");
+        final int h4NodesLen = h4Nodes.size();
+        
+        boolean statusFound = false;
+        int status = 0;
+        
+        for (int i = 0; i < h4NodesLen; ++i) {
+            final Element elem = h4Nodes.get(i);
+            if (elem.hasClass("actif1") || elem.hasClass("inactif1")) {
+                statusFound = true;
+            }
+            
+            if (elem.hasClass("actif1")) {
+                status += 1;
+            }
+        }
+        if (!statusFound) {
+            return false;
+        }
+        account.status = status;
+        
+        // Like the stream parser, the first product cell holding a field is
+        // used.
+        String name = null;
+        String phoneNumber = null;
+        final Elements produitNodes = doc.select("td[class]");
+        for (final Element elem : produitNodes) {
+            if (elem.hasClass("produit")) {
+                final String text = elem.text();
+                if (name == null) {
+                    name = getContract(text);
+                }
+                if (phoneNumber == null) {
+                    phoneNumber = getPhoneNumber(text);
+                }
+            }
+        }
+        if (name != null) {
+            account.name = name;
+        }
+        if (phoneNumber != null) {
+            account.phoneNumber = phoneNumber;
+        }
+        
+        return true;
+    }
+    
+    private static String getContract(String text) {
+        final int i = text.indexOf(CONTRACT_PREFIX);
+        if (i == -1) {
+            return null;
+        }
+        return text.substring(i + CONTRACT_PREFIX.length()).trim();
+    }
+    
+    private static String getPhoneNumber(String text) {
+        final int j = text.indexOf(PHONE_NUMBER_PREFIX);
+        if (j == -1) {
+            return null;
+        }
+        final int k = text.indexOf(PHONE_NUMBER_SUFFIX, j);
+        if (k != -1) {
+            return text.substring(j + PHONE_NUMBER_PREFIX.length(), k).trim();
+        }
+        return text.substring(j + PHONE_NUMBER_PREFIX.length()).trim();
+    }
+    
+    private boolean isComplete() {
+        return statusMarkers >= STATUS_STEPS && name != null
+                && phoneNumber != null;
+    }
+    
+    private void parse() throws IOException {
+        for (int c; !isComplete() && (c = read()) != -1;) {
+            if (c == '<') {
+                readMarkup();
+            } else if (productText != null) {
+                if (c == '&') {
+                    appendText(readEntity());
+                } else {
+                    appendText((char) c);
+                }
+            }
+        }
+        
+        // Account data may end with the page.
+        endProduct();
+    }
+    
+    private int read() throws IOException {
+        if (bufPos == bufLen) {
+            bufLen = reader.read(buf, 0, buf.length);
+            bufPos = 0;
+            if (bufLen <= 0) {
+                bufLen = 0;
+                return -1;
+            }
+        }
+        return buf[bufPos++];
+    }
+    
+    private void unread() {
+        --bufPos;
+    }
+    
+    private void readMarkup() throws IOException {
+        int c = read();
+        if (c == '!') {
+            c = read();
+            if (c == '-' && read() == '-') {
+                skipUntil("-->");
+            } else {
+                skipUntil(">");
+            }
+            return;
+        }
+        if (c == '?') {
+            skipUntil(">");
+            return;
+        }
+        
+        endTag = c == '/';
+        if (!endTag && c != -1) {
+            unread();
+        }
+        
+        tagName.setLength(0);
+        tagClass = null;
+        for (; (c = read()) != -1 && !isWhitespace(c) && c != '>' && c != '/';) {
+            tagName.append(Character.toLowerCase((char) c));
+        }
+        if (c == -1) {
+            return;
+        }
+        if (tagName.length() == 0) {
+            // This is not a tag.
+            if (productText != null) {
+                appendText('<');
+            }
+            unread();
+            return;
+        }
+        if (c != '>') {
+            readAttributes();
+        }
+        
+        final String tag = tagName.toString();
+        if (endTag) {
+            onEndTag(tag);
+        } else {
+            onStartTag(tag);
+            if ("script".equals(tag) || "style".equals(tag)) {
+                skipUntil("</" + tag);
+                skipUntil(">");
+            }
+        }
+    }
+    
+    private void readAttributes() throws IOException {
+        int c;
+        for (;;) {
+            c = read();
+            while (c != -1 && (isWhitespace(c) || c == '/')) {
+                c = read();
+            }
+            if (c == -1 || c == '>') {
+                return;
+            }
+            
+            attrName.setLength(0);
+            for (; c != -1 && !isWhitespace(c) && c != '=' && c != '>'
+                    && c != '/'; c = read()) {
+                attrName.append(Character.toLowerCase((char) c));
+            }
+            while (c != -1 && isWhitespace(c)) {
+                c = read();
+            }
+            
+            attrValue.setLength(0);
+            if (c == '=') {
+                c = read();
+                while (c != -1 && isWhitespace(c)) {
+                    c = read();
+                }
+                if (c == '"' || c == '\'') {
+                    final int quote = c;
+                    for (; (c = read()) != -1 && c != quote;) {
+                        if (c == '&') {
+                            attrValue.append(readEntity());
+                        } else {
+                            attrValue.append((char) c);
+                        }
+                    }
+                } else {
+                    for (; c != -1 && !isWhitespace(c) && c != '>'; c = read()) {
+                        attrValue.append((char) c);
+                    }
+                    if (c == '>') {
+                        unread();
+                    }
+                }
+            } else if (c != -1) {
+                unread();
+            }
+            
+            if (tagClass == null && "class".contentEquals(attrName)) {
+                tagClass = attrValue.toString();
+            }
+        }
+    }
+    
+    private void onStartTag(String tag) {
+        if (productText != null) {
+            if ("td".equals(tag) && productDepth == 0) {
+                // A table cell is implicitly closed by the next one.
+                endProduct();
+            } else {
+                if ("td".equals(tag)) {
+                    ++productDepth;
+                }
+                if ("br".equals(tag) || !INLINE_TAGS.contains(tag)) {
+                    appendSpace();
+                }
+            }
+        }
+        
+        if ("h4".equals(tag) && tagClass != null) {
+            if (hasClass("actif1")) {
+                ++statusMarkers;
+                ++status;
+            } else if (hasClass("inactif1")) {
+                ++statusMarkers;
+            }
+        } else if ("td".equals(tag) && productText == null && tagClass != null
+                && hasClass("produit")) {
+            productText = new StringBuilder(64);
+            productDepth = 0;
+        }
+    }
+    
+    private void onEndTag(String tag) {
+        if (productText == null) {
+            return;
+        }
+        if ("td".equals(tag)) {
+            if (productDepth == 0) {
+                endProduct();
+            } else {
+                --productDepth;
+            }
+        } else if (productDepth == 0
+                && ("tr".equals(tag) || "table".equals(tag))) {
+            endProduct();
+        }
+    }
+    
+    private void endProduct() {
+        if (productText != null) {
+            final String text = productText.toString().trim();
+            productText = null;
+            
+            // Reading stops once every field is found: the first product
+            // cell holding a field is used.
+            if (name == null) {
+                name = getContract(text);
+            }
+            if (phoneNumber == null) {
+                phoneNumber = getPhoneNumber(text);
+            }
+        }
+    }
+    
+    private boolean hasClass(String className) {
+        final String[] classNames = tagClass.trim().split("\\s+");
+        for (final String c : classNames) {
+            if (c.equalsIgnoreCase(className)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private void appendSpace() {
+        final int len = productText.length();
+        if (len != 0 && !isWhitespace(productText.charAt(len - 1))) {
+            productText.append(' ');
+        }
+    }
+    
+    private void appendText(char c) {
+        if (isWhitespace(c)) {
+            appendSpace();
+        } else {
+            productText.append(c);
+        }
+    }
+    
+    private void appendText(String text) {
+        final int len = text.length();
+        for (int i = 0; i < len; ++i) {
+            appendText(text.charAt(i));
+        }
+    }
+    
+    /**
+     * Read a character reference, after the leading <code>&amp;</code>.
+     * Unknown references are returned as is.
+     */
+    private String readEntity() throws IOException {
+        entity.setLength(0);
+        int c;
+        for (; (c = read()) != -1 && c != ';' && entity.length() < 10;) {
+            if (!Character.isLetterOrDigit(c) && c != '#') {
+                break;
+            }
+            entity.append((char) c);
+        }
+        if (c != ';') {
+            if (c != -1) {
+                unread();
+            }
+            return "&" + entity;
+        }
+        
+        final String ref = entity.toString();
+        if (ref.startsWith("#")) {
+            try {
+                final int codePoint;
+                if (ref.length() > 1
+                        && (ref.charAt(1) == 'x' || ref.charAt(1) == 'X')) {
+                    codePoint = Integer.parseInt(ref.substring(2), 16);
+                } else {
+                    codePoint = Integer.parseInt(ref.substring(1));
+                }
+                return new String(Character.toChars(codePoint));
+            } catch (IllegalArgumentException e) {
+                return "&" + ref + ";";
+            }
+        }
+        if (Entities.isNamedEntity(ref)) {
+            return String.valueOf(Entities.getCharacterByName(ref));
+        }
+        return "&" + ref + ";";
+    }
+    
+    private void skipUntil(String marker) throws IOException {
+        final String lowerMarker = marker.toLowerCase(Locale.ENGLISH);
+        final int markerLen = lowerMarker.length();
+        int matched = 0;
+        for (int c; matched < markerLen && (c = read()) != -1;) {
+            if (Character.toLowerCase((char) c) == lowerMarker.charAt(matched)) {
+                ++matched;
+            } else {
+                matched = Character.toLowerCase((char) c) == lowerMarker
+                        .charAt(0) ? 1 : 0;
+            }
+        }
+    }
+    
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r';
+    }
+}
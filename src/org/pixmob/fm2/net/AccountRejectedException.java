@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.net;
+
+import java.io.IOException;
+
+/**
+ * Error thrown when an account cannot be synchronized because of the account
+ * itself: the login is invalid, or the website rejected the credentials. This
+ * error does not tell whether the website is available.
+ * @author Pixmob
+ */
+public class AccountRejectedException extends IOException {
+    private static final long serialVersionUID = 1L;
+    
+    public AccountRejectedException(final String message) {
+        super(message);
+    }
+}
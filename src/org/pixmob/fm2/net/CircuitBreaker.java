@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.net;
+
+import static org.pixmob.fm2.Constants.TAG;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Circuit breaker for requests to the Free Mobile website. After
+ * {@link #FAILURE_THRESHOLD} consecutive failures, the circuit is opened: no
+ * request is sent until a delay has elapsed. A single request is then allowed
+ * to probe the website. The circuit is closed if this request succeeds, or
+ * opened again with a longer delay.
+ * <p>
+ * The circuit state is kept in application private storage, so that the
+ * website is not hammered when the application process is restarted.
+ * </p>
+ * @author Pixmob
+ */
+public class CircuitBreaker {
+    /**
+     * Circuit state: requests are allowed.
+     */
+    public static final int CLOSED = 0;
+    /**
+     * Circuit state: requests are not allowed.
+     */
+    public static final int OPEN = 1;
+    /**
+     * Circuit state: a single request is allowed, for probing the website.
+     */
+    public static final int HALF_OPEN = 2;
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long MIN_OPEN_DELAY = 1000 * 60 * 5;
+    private static final long MAX_OPEN_DELAY = 1000 * 60 * 60;
+    private static final String PREFS_NAME = "circuitBreaker";
+    private static final String KEY_FAILURES = "failures";
+    private static final String KEY_OPEN_UNTIL = "openUntil";
+    private static final String KEY_OPEN_DELAY = "openDelay";
+    private static CircuitBreaker instance;
+    private final SharedPreferences prefs;
+    private int failures;
+    private long openUntil;
+    private long openDelay;
+    private boolean probing;
+    
+    private CircuitBreaker(final Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        failures = prefs.getInt(KEY_FAILURES, 0);
+        openUntil = prefs.getLong(KEY_OPEN_UNTIL, 0);
+        openDelay = prefs.getLong(KEY_OPEN_DELAY, 0);
+    }
+    
+    /**
+     * Get the circuit breaker shared by the application.
+     */
+    public static synchronized CircuitBreaker getInstance(Context context) {
+        if (instance == null) {
+            instance = new CircuitBreaker(context.getApplicationContext());
+        }
+        return instance;
+    }
+    
+    /**
+     * Get the circuit state: {@link #CLOSED}, {@link #OPEN} or
+     * {@link #HALF_OPEN}.
+     */
+    public synchronized int getState() {
+        if (openUntil == 0) {
+            return CLOSED;
+        }
+        return System.currentTimeMillis() < openUntil ? OPEN : HALF_OPEN;
+    }
+    
+    /**
+     * Get when requests will be allowed again.
+     * @return a timestamp, or <code>0</code> if the circuit is not open
+     */
+    public synchronized long getRetryTime() {
+        return getState() == OPEN ? openUntil : 0;
+    }
+    
+    /**
+     * Check if a request is allowed. If the circuit is half open, only one
+     * request is allowed until its result is known.
+     * @return <code>true</code> if the request can be sent: its result must
+     *         be reported to this instance
+     */
+    public synchronized boolean allowRequest() {
+        switch (getState()) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                if (probing) {
+                    return false;
+                }
+                Log.i(TAG, "Probing website");
+                probing = true;
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Report a successful request.
+     */
+    public synchronized void onSuccess() {
+        probing = false;
+        if (failures == 0 && openUntil == 0) {
+            return;
+        }
+        if (openUntil != 0) {
+            Log.i(TAG, "Website is available: closing circuit");
+        }
+        failures = 0;
+        openUntil = 0;
+        openDelay = 0;
+        save();
+    }
+    
+    /**
+     * Report a failed request.
+     */
+    public synchronized void onFailure() {
+        ++failures;
+        if (probing) {
+            probing = false;
+            open(Math.min(openDelay * 2, MAX_OPEN_DELAY));
+        } else if (openUntil == 0 && failures >= FAILURE_THRESHOLD) {
+            open(MIN_OPEN_DELAY);
+        } else {
+            save();
+        }
+    }
+    
+    /**
+     * Report a request which was not sent, after it was allowed.
+     */
+    public synchronized void onAborted() {
+        probing = false;
+    }
+    
+    private void open(long delay) {
+        openDelay = Math.max(delay, MIN_OPEN_DELAY);
+        openUntil = System.currentTimeMillis() + openDelay;
+        Log.w(TAG, "Website is unavailable after " + failures
+                + " failure(s): opening circuit for " + openDelay / 1000
+                + " s");
+        save();
+    }
+    
+    private void save() {
+        prefs.edit().putInt(KEY_FAILURES, failures)
+                .putLong(KEY_OPEN_UNTIL, openUntil)
+                .putLong(KEY_OPEN_DELAY, openDelay).commit();
+    }
+}
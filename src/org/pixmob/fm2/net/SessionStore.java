@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.net;
+
+import static org.pixmob.fm2.Constants.DEBUG;
+import static org.pixmob.fm2.Constants.TAG;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Store for authenticated sessions. Sessions are shared by every instance in
+ * the application process, so that a session can be reused by later
+ * synchronizations and by the account details screen.
+ * <p>
+ * Session cookies are only kept in memory: they are never written to the
+ * storage. Session reuse statistics are written by {@link #save()}, once per
+ * synchronization.
+ * </p>
+ * @author Pixmob
+ */
+public class SessionStore {
+    /**
+     * Session lifetime, after the last successful request.
+     */
+    private static final long SESSION_TTL = 1000 * 60 * 20;
+    private static final String PREFS_NAME = "sessions";
+    private static final String KEY_HIT_COUNT = "hitCount";
+    private static final String KEY_MISS_COUNT = "missCount";
+    /**
+     * Sessions were stored with these key prefixes by previous versions.
+     */
+    private static final String[] LEGACY_KEY_PREFIXES = { "cookies_",
+            "expiry_" };
+    private static final Map<String, Session> SESSIONS = new HashMap<String, Session>(
+            8);
+    private static final Map<String, Object> LOGIN_LOCKS = new HashMap<String, Object>(
+            8);
+    private static final Object SAVE_LOCK = new Object();
+    private static final AtomicLong PENDING_HITS = new AtomicLong();
+    private static final AtomicLong PENDING_MISSES = new AtomicLong();
+    private static boolean legacySessionsRemoved;
+    private final SharedPreferences prefs;
+    
+    public SessionStore(final Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+    
+    /**
+     * Get the lock for the session of an user. This lock is held while a
+     * session is opened and used, so that a single session is opened for an
+     * user at once: other requests wait, and reuse this session.
+     */
+    public static Object getLock(String login) {
+        synchronized (LOGIN_LOCKS) {
+            Object lock = LOGIN_LOCKS.get(login);
+            if (lock == null) {
+                lock = new Object();
+                LOGIN_LOCKS.put(login, lock);
+            }
+            return lock;
+        }
+    }
+    
+    /**
+     * Get session cookies for an user. Cookies are added to
+     * <code>cookies</code>.
+     * @return <code>true</code> if a session which is not expired was found
+     */
+    public boolean get(String login, Set<String> cookies) {
+        synchronized (SESSIONS) {
+            final Session session = SESSIONS.get(login);
+            if (session == null) {
+                return false;
+            }
+            if (session.expiry < System.currentTimeMillis()) {
+                SESSIONS.remove(login);
+                return false;
+            }
+            cookies.addAll(session.cookies);
+            return !session.cookies.isEmpty();
+        }
+    }
+    
+    /**
+     * Store session cookies for an user. The session expiry is updated.
+     */
+    public void put(String login, Set<String> cookies) {
+        final Session session = new Session(new HashSet<String>(cookies),
+                System.currentTimeMillis() + SESSION_TTL);
+        synchronized (SESSIONS) {
+            SESSIONS.put(login, session);
+        }
+    }
+    
+    /**
+     * Forget the session of an user.
+     */
+    public void remove(String login) {
+        synchronized (SESSIONS) {
+            SESSIONS.remove(login);
+        }
+    }
+    
+    /**
+     * Record a session reuse: authentication requests were not sent.
+     */
+    public void onSessionHit() {
+        PENDING_HITS.incrementAndGet();
+    }
+    
+    /**
+     * Record a session miss: authentication requests were sent.
+     */
+    public void onSessionMiss() {
+        PENDING_MISSES.incrementAndGet();
+    }
+    
+    /**
+     * Get the number of reused sessions.
+     */
+    public long getHitCount() {
+        return prefs.getLong(KEY_HIT_COUNT, 0) + PENDING_HITS.get();
+    }
+    
+    /**
+     * Get the number of sessions which could not be reused.
+     */
+    public long getMissCount() {
+        return prefs.getLong(KEY_MISS_COUNT, 0) + PENDING_MISSES.get();
+    }
+    
+    /**
+     * Write session reuse statistics recorded since the last call, in a
+     * single write.
+     */
+    public void save() {
+        synchronized (SAVE_LOCK) {
+            final long hits = PENDING_HITS.getAndSet(0);
+            final long misses = PENDING_MISSES.getAndSet(0);
+            if (hits == 0 && misses == 0 && legacySessionsRemoved) {
+                return;
+            }
+            
+            final SharedPreferences.Editor editor = prefs.edit();
+            if (!legacySessionsRemoved) {
+                // Session cookies are not stored anymore.
+                for (final String key : prefs.getAll().keySet()) {
+                    for (final String prefix : LEGACY_KEY_PREFIXES) {
+                        if (key.startsWith(prefix)) {
+                            editor.remove(key);
+                        }
+                    }
+                }
+                legacySessionsRemoved = true;
+            }
+            final long totalHits = prefs.getLong(KEY_HIT_COUNT, 0) + hits;
+            final long totalMisses = prefs.getLong(KEY_MISS_COUNT, 0) + misses;
+            editor.putLong(KEY_HIT_COUNT, totalHits)
+                    .putLong(KEY_MISS_COUNT, totalMisses).commit();
+            
+            if (DEBUG && totalHits + totalMisses != 0) {
+                Log.d(TAG, "Session reuse: " + totalHits + " hit(s), "
+                        + totalMisses + " miss(es), "
+                        + (100 * totalHits / (totalHits + totalMisses))
+                        + "% hit rate");
+            }
+        }
+    }
+    
+    /**
+     * Authenticated session.
+     * @author Pixmob
+     */
+    private static class Session {
+        public final Set<String> cookies;
+        public final long expiry;
+        
+        public Session(final Set<String> cookies, final long expiry) {
+            this.cookies = cookies;
+            this.expiry = expiry;
+        }
+    }
+}
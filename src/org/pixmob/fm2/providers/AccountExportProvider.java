@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.providers;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+/**
+ * Provider for sharing the account export file, which is stored in the
+ * application private directory. This provider is not exported: the file can
+ * only be read by an application which was granted a permission for
+ * {@link #EXPORT_URI}, when the user shares the file.
+ * @author Pixmob
+ */
+public class AccountExportProvider extends ContentProvider {
+    /**
+     * Uri of the account export file.
+     */
+    public static final Uri EXPORT_URI = Uri
+            .parse("content://org.pixmob.fm2.export/fm2-accounts.csv");
+    private static final String MIME_TYPE = "text/csv";
+    
+    /**
+     * Get the account export file.
+     */
+    public static File getExportFile(Context context) {
+        return new File(context.getFilesDir(), EXPORT_URI.getLastPathSegment());
+    }
+    
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+    
+    @Override
+    public String getType(Uri uri) {
+        return EXPORT_URI.equals(uri) ? MIME_TYPE : null;
+    }
+    
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode)
+            throws FileNotFoundException {
+        if (!EXPORT_URI.equals(uri) || !"r".equals(mode)) {
+            throw new FileNotFoundException("Cannot open " + uri + " with mode "
+                    + mode);
+        }
+        return ParcelFileDescriptor.open(getExportFile(getContext()),
+            ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+    
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        if (!EXPORT_URI.equals(uri)) {
+            return null;
+        }
+        
+        // Applications receiving the file may ask for its name and its size.
+        final File file = getExportFile(getContext());
+        final String[] columns = projection != null ? projection
+                : new String[] { OpenableColumns.DISPLAY_NAME,
+                        OpenableColumns.SIZE };
+        final Object[] row = new Object[columns.length];
+        for (int i = 0; i < columns.length; ++i) {
+            if (OpenableColumns.DISPLAY_NAME.equals(columns[i])) {
+                row[i] = file.getName();
+            } else if (OpenableColumns.SIZE.equals(columns[i])) {
+                row[i] = file.length();
+            }
+        }
+        final MatrixCursor cursor = new MatrixCursor(columns, 1);
+        cursor.addRow(row);
+        return cursor;
+    }
+    
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Read-only provider");
+    }
+    
+    @Override
+    public int update(Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read-only provider");
+    }
+    
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read-only provider");
+    }
+}
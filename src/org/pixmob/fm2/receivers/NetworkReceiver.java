@@ -17,20 +17,43 @@ package org.pixmob.fm2.receivers;
 
 import static org.pixmob.fm2.Constants.TAG;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.pixmob.fm2.services.SchedulerService;
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
- * Track network connectivity.
+ * Track network connectivity. When the network is flapping, background
+ * synchronizations are scheduled once, {@link #DEBOUNCE_DELAY} after the last
+ * time the network became available.
  * @author Pixmob
  */
 public class NetworkReceiver extends BroadcastReceiver {
+    private static final long DEBOUNCE_DELAY = 1000 * 30;
+    private static final AtomicInteger DEBOUNCED_EVENTS = new AtomicInteger();
+    /**
+     * When was the network last available? This value is read from
+     * {@link SystemClock#elapsedRealtime()}, and only used by the main thread.
+     */
+    private static long lastNetworkAvailable = -1;
+    
+    /**
+     * Get the number of connectivity changes which were merged with a later
+     * one.
+     */
+    public static int getDebouncedEventCount() {
+        return DEBOUNCED_EVENTS.get();
+    }
+    
     @Override
     public void onReceive(Context context, Intent intent) {
         final ConnectivityManager cm = (ConnectivityManager) context
@@ -39,9 +62,25 @@ public class NetworkReceiver extends BroadcastReceiver {
         if (info != null && info.isAvailable() && info.isConnected()) {
             Log.i(TAG, "Network is available");
             
+            final long now = SystemClock.elapsedRealtime();
+            if (lastNetworkAvailable != -1
+                    && now - lastNetworkAvailable < DEBOUNCE_DELAY) {
+                Log.i(TAG, "Merge network change ("
+                        + DEBOUNCED_EVENTS.incrementAndGet() + " merged)");
+            }
+            lastNetworkAvailable = now;
+            
             // The network becomes available: schedule background account
-            // synchronizations.
-            context.startService(new Intent(context, SchedulerService.class));
+            // synchronizations once the network is stable. Setting the alarm
+            // again replaces the pending one, so that the last change is
+            // always handled.
+            final PendingIntent schedulerIntent = PendingIntent.getService(
+                context, 0, new Intent(context, SchedulerService.class),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+            final AlarmManager am = (AlarmManager) context
+                    .getSystemService(Context.ALARM_SERVICE);
+            am.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, now + DEBOUNCE_DELAY,
+                schedulerIntent);
         } else {
             Log.i(TAG, "Network is NOT available");
         }
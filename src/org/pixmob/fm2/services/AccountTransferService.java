@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.services;
+
+import static org.pixmob.fm2.Constants.DEBUG;
+import static org.pixmob.fm2.Constants.TAG;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pixmob.fm2.R;
+import org.pixmob.fm2.model.Account;
+import org.pixmob.fm2.model.AccountCache;
+import org.pixmob.fm2.model.AccountRepository;
+import org.pixmob.fm2.model.AccountRepository.AccountHandler;
+import org.pixmob.fm2.providers.AccountExportProvider;
+import org.pixmob.fm2.ui.FM2;
+import org.pixmob.fm2.util.CsvReader;
+import org.pixmob.fm2.util.CsvWriter;
+import org.pixmob.fm2.util.IOUtils;
+
+import android.app.IntentService;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.net.Uri;
+import android.util.Log;
+
+import com.bugsense.trace.BugSenseHandler;
+
+/**
+ * Service for importing and exporting accounts, with CSV files. Each record
+ * starts with an account login and password. Files are read and written as
+ * streams, and accounts are created by batches: memory usage does not depend
+ * on the file size.
+ * @author Pixmob
+ */
+public class AccountTransferService extends IntentService {
+    /**
+     * Import accounts from the file set as the intent data.
+     */
+    public static final String ACTION_IMPORT = "org.pixmob.fm2.action.IMPORT_ACCOUNTS";
+    /**
+     * Export accounts to the file set as the intent data. If there is no
+     * intent data, accounts are exported to the application private
+     * directory: the user is notified, and can share the file with
+     * {@link AccountExportProvider}.
+     */
+    public static final String ACTION_EXPORT = "org.pixmob.fm2.action.EXPORT_ACCOUNTS";
+    /**
+     * Intent extra for exporting passwords. Passwords are not exported if
+     * this extra is not set.
+     */
+    public static final String EXTRA_INCLUDE_PASSWORDS = "includePasswords";
+    private static final String EXPORT_MIME_TYPE = "text/csv";
+    private static final String CHARSET = "UTF-8";
+    private static final int BATCH_SIZE = 100;
+    private static final int MAX_LOGIN_LENGTH = 64;
+    
+    public AccountTransferService() {
+        super("FM2/AccountTransfer");
+    }
+    
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        final String action = intent.getAction();
+        try {
+            if (ACTION_IMPORT.equals(action)) {
+                importAccounts(intent.getData());
+            } else if (ACTION_EXPORT.equals(action)) {
+                exportAccounts(intent.getData(), intent.getBooleanExtra(
+                    EXTRA_INCLUDE_PASSWORDS, false));
+            } else {
+                Log.w(TAG, "Unsupported action: " + action);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Account transfer failed", e);
+            BugSenseHandler.log(TAG, e);
+            notify(android.R.drawable.stat_sys_warning,
+                getString(R.string.notif_account_transfer_failed));
+        }
+    }
+    
+    private void importAccounts(Uri uri) throws IOException {
+        Log.i(TAG, "Importing accounts from " + uri);
+        
+        final InputStream input = getContentResolver().openInputStream(uri);
+        if (input == null) {
+            throw new IOException("Cannot read accounts from " + uri);
+        }
+        
+        final AccountCache accountCache = AccountCache.getInstance(this);
+        final List<Account> batch = new ArrayList<Account>(BATCH_SIZE);
+        int created = 0;
+        int duplicates = 0;
+        int invalid = 0;
+        
+        final CsvReader reader = new CsvReader(new BufferedReader(
+                new InputStreamReader(input, CHARSET)));
+        try {
+            for (String[] record; (record = reader.readRecord()) != null;) {
+                final String login = record[0].trim();
+                final String password = record.length < 2 ? "" : record[1]
+                        .trim();
+                if (reader.getLineNumber() == 1
+                        && "login".equalsIgnoreCase(login)) {
+                    // Skip header.
+                    continue;
+                }
+                if (!isValidAccount(login, password)) {
+                    if (DEBUG) {
+                        Log.d(TAG, "Skip invalid account at line "
+                                + reader.getLineNumber());
+                    }
+                    ++invalid;
+                    continue;
+                }
+                
+                final Account account = new Account();
+                account.login = login;
+                account.password = password;
+                batch.add(account);
+                
+                if (batch.size() == BATCH_SIZE) {
+                    final int batchCreated = accountCache.createAll(batch);
+                    created += batchCreated;
+                    duplicates += batch.size() - batchCreated;
+                    batch.clear();
+                }
+            }
+        } finally {
+            IOUtils.close(reader);
+        }
+        
+        final int batchCreated = accountCache.createAll(batch);
+        created += batchCreated;
+        duplicates += batch.size() - batchCreated;
+        
+        Log.i(TAG, "Accounts imported: " + created + " created, "
+                + duplicates + " duplicate(s), " + invalid + " invalid");
+        notify(android.R.drawable.stat_sys_download_done, getString(
+            R.string.notif_accounts_imported, created, duplicates, invalid));
+        
+        if (created != 0) {
+            // Get data for new accounts.
+            startService(new Intent(this, SyncService.class).putExtra(
+                SyncService.EXTRA_ACCOUNTS_CHANGED, true));
+        }
+    }
+    
+    private static boolean isValidAccount(String login, String password) {
+        // Same rules as the account cleanup and the synchronization.
+        return login.length() >= Account.MIN_LOGIN_LENGTH
+                && login.length() <= MAX_LOGIN_LENGTH && password.length() != 0;
+    }
+    
+    private void exportAccounts(Uri uri, final boolean includePasswords)
+            throws IOException {
+        final OutputStream output;
+        final String target;
+        if (uri == null) {
+            // The file is private: it is only readable by the applications
+            // the user shares it with.
+            final File file = AccountExportProvider.getExportFile(this);
+            output = new FileOutputStream(file);
+            target = file.getAbsolutePath();
+        } else {
+            output = getContentResolver().openOutputStream(uri);
+            if (output == null) {
+                throw new IOException("Cannot write accounts to " + uri);
+            }
+            target = uri.toString();
+        }
+        
+        Log.i(TAG, "Exporting accounts to " + target);
+        
+        final CsvWriter writer = new CsvWriter(new BufferedWriter(
+                new OutputStreamWriter(output, CHARSET)));
+        final int[] count = { 0 };
+        try {
+            writer.writeRecord("login", "password", "name", "phone_number");
+            new AccountRepository(this).forEach(new AccountHandler() {
+                @Override
+                public void onAccount(Account account) throws IOException {
+                    writer.writeRecord(account.login,
+                        includePasswords ? account.password : "",
+                        account.name, account.phoneNumber);
+                    ++count[0];
+                }
+            });
+            writer.flush();
+        } finally {
+            IOUtils.close(writer);
+        }
+        
+        Log.i(TAG, count[0] + " account(s) exported"
+                + (includePasswords ? " with passwords" : ""));
+        
+        final PendingIntent action;
+        if (uri == null) {
+            // Let the user pick where the file is sent.
+            final Intent share = new Intent(Intent.ACTION_SEND)
+                    .setDataAndType(AccountExportProvider.EXPORT_URI,
+                        EXPORT_MIME_TYPE)
+                    .putExtra(Intent.EXTRA_STREAM,
+                        AccountExportProvider.EXPORT_URI)
+                    .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            action = PendingIntent.getActivity(this, 0, Intent.createChooser(
+                share, getString(R.string.menu_export_accounts)),
+                PendingIntent.FLAG_CANCEL_CURRENT);
+        } else {
+            action = null;
+        }
+        notify(android.R.drawable.stat_sys_upload_done,
+            getString(R.string.notif_accounts_exported, count[0]), action);
+    }
+    
+    private void notify(int icon, String message) {
+        notify(icon, message, null);
+    }
+    
+    private void notify(int icon, String message, PendingIntent action) {
+        final PendingIntent openUI = action != null ? action : PendingIntent
+                .getActivity(this, 0, new Intent(this, FM2.class)
+                        .setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP),
+                    PendingIntent.FLAG_CANCEL_CURRENT);
+        
+        final Notification n = new Notification(icon, message,
+                System.currentTimeMillis());
+        n.setLatestEventInfo(this, getString(R.string.app_name), message,
+            openUI);
+        n.flags = Notification.FLAG_AUTO_CANCEL;
+        
+        final NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        nm.notify(R.string.notif_accounts_imported, n);
+    }
+}
@@ -15,9 +15,11 @@
  */
 package org.pixmob.fm2.services;
 
+import static org.pixmob.fm2.Constants.SHARED_PREFS;
+import static org.pixmob.fm2.Constants.SP_KEY_LAST_DATABASE_CLEANUP;
 import static org.pixmob.fm2.Constants.TAG;
 
-import org.pixmob.fm2.model.Account;
+import org.pixmob.fm2.model.AccountCache;
 import org.pixmob.fm2.model.AccountRepository;
 
 import android.app.IntentService;
@@ -29,6 +31,19 @@ import android.util.Log;
  * @author Pixmob
  */
 public class DatabaseCleanupService extends IntentService {
+    /**
+     * Minimum time between two database cleanups.
+     */
+    public static final long CLEANUP_INTERVAL = 1000 * 60 * 60 * 24;
+    /**
+     * How long are account status transitions kept?
+     */
+    private static final long HISTORY_RETENTION = 1000L * 60 * 60 * 24 * 90;
+    /**
+     * Account status transitions older than this delay are compacted.
+     */
+    private static final long HISTORY_COMPACTION_DELAY = 1000L * 60 * 60 * 24 * 7;
+    
     public DatabaseCleanupService() {
         super("FM2/DatabaseCleanup");
     }
@@ -38,21 +53,35 @@ public class DatabaseCleanupService extends IntentService {
         Log.i(TAG, "Cleaning up application database");
         
         // Delete "weird" accounts.
+        final int invalidAccounts = AccountCache.getInstance(this)
+                .deleteInvalidAccounts();
+        if (invalidAccounts != 0) {
+            Log.i(TAG, "Deleted " + invalidAccounts + " invalid account(s)");
+        }
+        
+        // Delete old account status transitions.
         final AccountRepository repo = new AccountRepository(this);
-        for (final Account account : repo.list()) {
-            boolean invalidAccount = false;
-            if (account.login == null) {
-                invalidAccount = true;
-            } else {
-                final String login = account.login.trim();
-                if (login.length() == 0 || "255".equals(login)) {
-                    invalidAccount = true;
-                }
-            }
-            
-            if (invalidAccount) {
-                repo.delete(account);
-            }
+        final long now = System.currentTimeMillis();
+        final int purgedTransitions = repo.purgeHistory(now
+                - HISTORY_RETENTION);
+        if (purgedTransitions != 0) {
+            Log.i(TAG, "Deleted " + purgedTransitions
+                    + " account status transition(s)");
         }
+        
+        // Merge account status transitions which are not recent.
+        final int compactedTransitions = repo.compactHistory(now
+                - HISTORY_COMPACTION_DELAY);
+        if (compactedTransitions != 0) {
+            Log.i(TAG, "Compacted " + compactedTransitions
+                    + " account status transition(s)");
+        }
+        
+        // Reclaim space from deleted rows.
+        repo.optimize();
+        
+        getSharedPreferences(SHARED_PREFS, MODE_PRIVATE).edit()
+                .putLong(SP_KEY_LAST_DATABASE_CLEANUP,
+                    System.currentTimeMillis()).commit();
     }
 }
@@ -15,10 +15,18 @@
  */
 package org.pixmob.fm2.services;
 
+import static org.pixmob.fm2.Constants.DEBUG;
 import static org.pixmob.fm2.Constants.SHARED_PREFS;
+import static org.pixmob.fm2.Constants.SP_KEY_PENDING_SYNC_TIME;
 import static org.pixmob.fm2.Constants.SP_KEY_PERFORM_UPDATES;
 import static org.pixmob.fm2.Constants.SP_KEY_UPDATE_INTERVAL;
 import static org.pixmob.fm2.Constants.TAG;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.pixmob.fm2.model.AccountRepository;
+import org.pixmob.fm2.net.CircuitBreaker;
+
 import android.app.AlarmManager;
 import android.app.IntentService;
 import android.app.PendingIntent;
@@ -28,39 +36,126 @@ import android.content.SharedPreferences;
 import android.util.Log;
 
 /**
- * Schedule background account synchronizations.
+ * Schedule background account synchronizations. Each account has its own
+ * synchronization interval, which is at least the interval set by the user:
+ * an alarm is set for the earliest due account. This service must be started
+ * again after each synchronization.
+ * <p>
+ * If a synchronization is due soon, it is not delayed by this service: new
+ * requests are merged with this synchronization.
+ * </p>
  * @author Pixmob
+ * @see org.pixmob.fm2.model.SyncSchedule
  */
 public class SchedulerService extends IntentService {
+    /**
+     * Intent extra set when the last synchronization was skipped because the
+     * network was not available. The next synchronization is scheduled after
+     * the interval set by the user: a synchronization is started when the
+     * network is available again.
+     */
+    public static final String EXTRA_OFFLINE = "offline";
+    /**
+     * Minimum delay before the next background synchronization.
+     */
+    private static final long MIN_DELAY = 1000 * 60 * 3;
+    private static final AtomicInteger MERGED_REQUESTS = new AtomicInteger();
+    
     public SchedulerService() {
         super("FM2/Scheduler");
     }
     
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        final PendingIntent syncIntent = PendingIntent.getService(this, 0,
-            new Intent(this, SyncService.class).putExtra(
-                SyncService.EXTRA_TRACK_UPDATES, true),
-            PendingIntent.FLAG_CANCEL_CURRENT);
-        
-        final SharedPreferences prefs = getSharedPreferences(SHARED_PREFS,
-            Context.MODE_PRIVATE);
+    /**
+     * Get the minimum synchronization interval set by the user.
+     * @return interval (ms), or <code>0</code> if background synchronizations
+     *         are disabled
+     */
+    static long getUpdateInterval(Context context) {
+        final SharedPreferences prefs = context.getSharedPreferences(
+            SHARED_PREFS, Context.MODE_PRIVATE);
         final long interval = Long.parseLong(prefs.getString(
             SP_KEY_UPDATE_INTERVAL,
             String.valueOf(AlarmManager.INTERVAL_FIFTEEN_MINUTES)));
         final boolean performUpdates = prefs.getBoolean(SP_KEY_PERFORM_UPDATES,
             true);
-        
+        return performUpdates ? interval : 0;
+    }
+    
+    /**
+     * Get the number of requests which were merged with a pending
+     * synchronization.
+     */
+    public static int getMergedRequestCount() {
+        return MERGED_REQUESTS.get();
+    }
+    
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        final Intent syncIntent = new Intent(this, SyncService.class).putExtra(
+            SyncService.EXTRA_TRACK_UPDATES, true).putExtra(
+            SyncService.EXTRA_DUE_ONLY, true);
+        final SharedPreferences prefs = getSharedPreferences(SHARED_PREFS,
+            MODE_PRIVATE);
         final AlarmManager am = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
-        if (interval == 0 || !performUpdates) {
+        
+        final long interval = getUpdateInterval(this);
+        if (interval == 0) {
             Log.i(TAG, "Canceling background account synchronization");
-            am.cancel(syncIntent);
-        } else {
-            Log.i(TAG, "Scheduling background account synchronization every "
-                    + interval + " ms");
-            am.setInexactRepeating(AlarmManager.RTC_WAKEUP,
-                System.currentTimeMillis() + 1000 * 60 * 3, interval,
-                syncIntent);
+            cancel(am, syncIntent, prefs);
+            return;
+        }
+        
+        final long nextDue = new AccountRepository(this).getNextDue();
+        if (nextDue == -1) {
+            Log.i(TAG, "No account: canceling background account "
+                    + "synchronization");
+            cancel(am, syncIntent, prefs);
+            return;
+        }
+        
+        final long now = System.currentTimeMillis();
+        // Accounts are not synchronized while the website is unavailable.
+        long syncTime = Math.max(Math.max(nextDue, now + MIN_DELAY),
+            CircuitBreaker.getInstance(this).getRetryTime());
+        if (intent.getBooleanExtra(EXTRA_OFFLINE, false)) {
+            // Do not wake up the device for checking the network.
+            syncTime = Math.max(syncTime, now + interval);
+        }
+        
+        // The pending time is only trusted if the alarm still exists: alarms
+        // are lost when the device reboots.
+        final long pendingSyncTime = prefs.getLong(SP_KEY_PENDING_SYNC_TIME,
+            -1);
+        final boolean armed = PendingIntent.getService(this, 0, syncIntent,
+            PendingIntent.FLAG_NO_CREATE) != null;
+        if (armed && pendingSyncTime > now && pendingSyncTime <= syncTime
+                && pendingSyncTime - now <= MIN_DELAY) {
+            // Keep the pending synchronization, which is due soon: it would
+            // be delayed otherwise.
+            Log.i(TAG, "Background account synchronization already scheduled"
+                    + " in " + (pendingSyncTime - now) / 1000 + " s ("
+                    + MERGED_REQUESTS.incrementAndGet() + " merged)");
+            return;
+        }
+        
+        Log.i(TAG, "Scheduling background account synchronization in "
+                + (syncTime - now) / 1000 + " s");
+        if (DEBUG) {
+            Log.d(TAG, "Minimum synchronization interval: " + interval + " ms");
+        }
+        am.set(AlarmManager.RTC_WAKEUP, syncTime, PendingIntent.getService(
+            this, 0, syncIntent, PendingIntent.FLAG_CANCEL_CURRENT));
+        prefs.edit().putLong(SP_KEY_PENDING_SYNC_TIME, syncTime).commit();
+    }
+    
+    private void cancel(AlarmManager am, Intent syncIntent,
+            SharedPreferences prefs) {
+        final PendingIntent pendingIntent = PendingIntent.getService(this, 0,
+            syncIntent, PendingIntent.FLAG_NO_CREATE);
+        if (pendingIntent != null) {
+            am.cancel(pendingIntent);
+            pendingIntent.cancel();
         }
+        prefs.edit().remove(SP_KEY_PENDING_SYNC_TIME).commit();
     }
 }
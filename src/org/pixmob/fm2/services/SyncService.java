@@ -15,13 +15,34 @@
  */
 package org.pixmob.fm2.services;
 
+import static org.pixmob.fm2.Constants.SHARED_PREFS;
+import static org.pixmob.fm2.Constants.SP_KEY_SYNC_THREADS;
 import static org.pixmob.fm2.Constants.TAG;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.ref.WeakReference;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLException;
 
@@ -29,36 +50,117 @@ import org.pixmob.actionservice.ActionExecutionFailedException;
 import org.pixmob.actionservice.ActionService;
 import org.pixmob.fm2.R;
 import org.pixmob.fm2.model.Account;
+import org.pixmob.fm2.model.AccountCache;
 import org.pixmob.fm2.model.AccountRepository;
+import org.pixmob.fm2.model.SyncSchedule;
 import org.pixmob.fm2.net.AccountNetworkClient;
+import org.pixmob.fm2.net.AccountRejectedException;
+import org.pixmob.fm2.net.CircuitBreaker;
+import org.pixmob.fm2.net.SessionStore;
 import org.pixmob.fm2.ui.FM2;
 
 import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
-import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.bugsense.trace.BugSenseHandler;
 
 /**
- * Service for synchronizing accounts.
+ * Service for synchronizing accounts. After each synchronization, the
+ * {@link SchedulerService} is started in order to schedule the next one.
+ * <p>
+ * Synchronization requests are merged: a request is ignored if a
+ * synchronization was started after this request was received, if a
+ * synchronization was running when this request was received, or if a
+ * synchronization ended just before.
+ * </p>
+ * <p>
+ * An account which failed to synchronize is retried on its own, according to
+ * its schedule. Requests to the website are guarded by a
+ * {@link CircuitBreaker}.
+ * </p>
+ * <p>
+ * Accounts requested by the user with {@link #EXTRA_ACCOUNT_IDS} are
+ * synchronized at once, even if another synchronization is running: their
+ * tasks are run before pending tasks of background synchronizations.
+ * </p>
  * @author Pixmob
  */
 public class SyncService extends ActionService {
     public static final String EXTRA_TRACK_UPDATES = "trackUpdates";
-    private static final String EXTRA_RETRY_COUNT = "retryCount";
-    private static final int RETRY_MAX = 2;
-    private static final long RETRY_PERIOD = 1000 * 60 * 3;
+    /**
+     * Only synchronize accounts which are due, according to their schedule.
+     */
+    public static final String EXTRA_DUE_ONLY = "dueOnly";
+    /**
+     * Accounts were created before this request: this request is only merged
+     * with a synchronization started after it.
+     */
+    public static final String EXTRA_ACCOUNTS_CHANGED = "accountsChanged";
+    /**
+     * This request was made by the user: it is only merged with a
+     * synchronization started after it.
+     */
+    public static final String EXTRA_USER_REQUEST = "userRequest";
+    /**
+     * Only synchronize these accounts (<code>int[]</code>), on behalf of the
+     * user. This request is neither queued nor merged with other requests.
+     */
+    public static final String EXTRA_ACCOUNT_IDS = "accountIds";
+    /**
+     * When was this request received? This value is read from
+     * {@link SystemClock#elapsedRealtime()}, and set by this service.
+     */
+    private static final String EXTRA_REQUEST_TIME = "requestTime";
+    /**
+     * Identifier of a targeted synchronization, started when the request was
+     * received. This value is set by this service.
+     */
+    private static final String EXTRA_TARGETED_SYNC = "targetedSync";
+    /**
+     * Accounts due within this delay are synchronized with due accounts.
+     */
+    private static final long DUE_TOLERANCE = 1000 * 60 * 3;
+    /**
+     * Maximum number of accounts used for probing the website, if probe
+     * accounts are rejected.
+     */
+    private static final int MAX_PROBES = 3;
+    private static final int DEFAULT_SYNC_THREADS = 4;
+    private static final int MAX_SYNC_THREADS = 8;
     private static final int SYNC_DONE = 1;
     private static final int SYNC_ERROR = 2;
+    private static final int ACCOUNT_SYNC_STARTED = 3;
+    private static final int ACCOUNT_SYNCED = 4;
+    private static final int ACCOUNT_SYNC_FAILED = 5;
+    /**
+     * Task priority for accounts requested by the user.
+     */
+    private static final int PRIORITY_INTERACTIVE = 0;
+    /**
+     * Task priority for background synchronizations.
+     */
+    private static final int PRIORITY_BACKGROUND = 1;
+    /**
+     * This lock is held while accounts are synchronized.
+     */
+    private static final Object SYNC_LOCK = new Object();
+    private static final AtomicInteger MERGED_REQUESTS = new AtomicInteger();
+    private static final AtomicInteger EXECUTED_REQUESTS = new AtomicInteger();
+    private static long lastSyncStart = -1;
+    private static long lastSyncEnd = -1;
+    private static boolean lastSyncFull;
     
     /**
      * Method callbacks for the synchronization service.
@@ -74,6 +176,24 @@ public class SyncService extends ActionService {
          * This method is called when a synchronization failed.
          */
         void onSyncError(Exception cause);
+        
+        /**
+         * This method is called when an account synchronization is started.
+         */
+        void onAccountSyncStarted(int accountId);
+        
+        /**
+         * This method is called as soon as an account is synchronized, before
+         * it is written to the database.
+         * @param account account with data read from the website
+         */
+        void onAccountSynced(Account account);
+        
+        /**
+         * This method is called when an account synchronization failed, or
+         * was cancelled.
+         */
+        void onAccountSyncFailed(int accountId, Exception cause);
     }
     
     /**
@@ -100,6 +220,16 @@ public class SyncService extends ActionService {
     private WeakReference<Listener> listenerRef;
     private Handler listenerHandler;
     private PendingIntent syncPendingIntent;
+    private ExecutorService syncExecutor;
+    private final Random random = new Random();
+    private final Map<Integer, Future<?>> targetedSyncs = new ConcurrentHashMap<Integer, Future<?>>(
+            4);
+    private final AtomicInteger targetedSyncCount = new AtomicInteger();
+    /**
+     * Accounts being synchronized by targeted synchronizations. These
+     * accounts are skipped by other synchronizations.
+     */
+    private final Set<Integer> targetedAccountIds = new HashSet<Integer>(4);
     
     public SyncService() {
         super("FM2/Sync", 10000, 2);
@@ -140,6 +270,16 @@ public class SyncService extends ActionService {
                             case SYNC_ERROR:
                                 listener.onSyncError((Exception) msg.obj);
                                 break;
+                            case ACCOUNT_SYNC_STARTED:
+                                listener.onAccountSyncStarted(msg.arg1);
+                                break;
+                            case ACCOUNT_SYNCED:
+                                listener.onAccountSynced((Account) msg.obj);
+                                break;
+                            case ACCOUNT_SYNC_FAILED:
+                                listener.onAccountSyncFailed(msg.arg1,
+                                    (Exception) msg.obj);
+                                break;
                         }
                     } catch (Exception e) {
                         Log.w(TAG, "Sync listener error", e);
@@ -155,6 +295,75 @@ public class SyncService extends ActionService {
             new Intent(this, FM2.class).setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP
                     | Intent.FLAG_ACTIVITY_SINGLE_TOP),
             PendingIntent.FLAG_CANCEL_CURRENT);
+        
+        // Accounts are synchronized in parallel, using a bounded number of
+        // workers: most of the time is spent waiting for the website. Pending
+        // tasks are sorted by priority, so that accounts requested by the user
+        // are synchronized before pending accounts of a background
+        // synchronization.
+        final int syncThreads = getSyncThreads();
+        syncExecutor = new ThreadPoolExecutor(syncThreads, syncThreads, 0,
+                TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+                new SyncThreadFactory());
+    }
+    
+    /**
+     * Get the number of accounts synchronized at the same time, set by the
+     * user. An invalid value is replaced with the default one.
+     */
+    private int getSyncThreads() {
+        final SharedPreferences prefs = getSharedPreferences(SHARED_PREFS,
+            MODE_PRIVATE);
+        final String value = prefs.getString(SP_KEY_SYNC_THREADS, null);
+        int syncThreads = DEFAULT_SYNC_THREADS;
+        if (value != null) {
+            try {
+                syncThreads = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid number of synchronization threads: "
+                        + value);
+            }
+        }
+        return Math.min(MAX_SYNC_THREADS, Math.max(1, syncThreads));
+    }
+    
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && !intent.hasExtra(EXTRA_REQUEST_TIME)) {
+            // Requests are stamped when they are received, before they are
+            // queued.
+            intent.putExtra(EXTRA_REQUEST_TIME, SystemClock.elapsedRealtime());
+        }
+        if (intent != null && intent.hasExtra(EXTRA_ACCOUNT_IDS)
+                && !intent.hasExtra(EXTRA_TARGETED_SYNC)) {
+            // Accounts requested by the user are not queued behind a running
+            // synchronization: they are synchronized right now, unless they
+            // are already being synchronized.
+            final int[] accountIds = claimTargetedAccounts(intent
+                    .getIntArrayExtra(EXTRA_ACCOUNT_IDS));
+            if (accountIds.length == 0) {
+                Log.i(TAG, "Targeted synchronization merged: accounts are "
+                        + "already being synchronized");
+                intent.putExtra(EXTRA_TARGETED_SYNC, 0);
+            } else {
+                final int targetedSyncId = targetedSyncCount.incrementAndGet();
+                final FutureTask<Void> targetedSync = new FutureTask<Void>(
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    syncAccounts(accountIds);
+                                } finally {
+                                    releaseTargetedAccounts(accountIds);
+                                }
+                            }
+                        }, null);
+                targetedSyncs.put(targetedSyncId, targetedSync);
+                intent.putExtra(EXTRA_TARGETED_SYNC, targetedSyncId);
+                new Thread(targetedSync, "FM2/TargetedSync").start();
+            }
+        }
+        return super.onStartCommand(intent, flags, startId);
     }
     
     @Override
@@ -162,11 +371,40 @@ public class SyncService extends ActionService {
         super.onDestroy();
         
         // Release resources.
+        syncExecutor.shutdownNow();
+        syncExecutor = null;
         accountNetworkClient = null;
         listenerHandler = null;
         listenerRef = null;
     }
     
+    /**
+     * Mark accounts as being synchronized by a targeted synchronization.
+     * @return accounts which were not already marked
+     */
+    private int[] claimTargetedAccounts(int[] accountIds) {
+        final int[] claimedIds = new int[accountIds.length];
+        int count = 0;
+        synchronized (targetedAccountIds) {
+            for (final int accountId : accountIds) {
+                if (targetedAccountIds.add(accountId)) {
+                    claimedIds[count++] = accountId;
+                }
+            }
+        }
+        final int[] result = new int[count];
+        System.arraycopy(claimedIds, 0, result, 0, count);
+        return result;
+    }
+    
+    private void releaseTargetedAccounts(int[] accountIds) {
+        synchronized (targetedAccountIds) {
+            for (final int accountId : accountIds) {
+                targetedAccountIds.remove(accountId);
+            }
+        }
+    }
+    
     /**
      * Check if the device is network connected.
      */
@@ -186,13 +424,99 @@ public class SyncService extends ActionService {
         BugSenseHandler.log(TAG, error);
     }
     
+    /**
+     * Get the number of synchronization requests which were merged with
+     * another synchronization.
+     */
+    public static int getMergedRequestCount() {
+        return MERGED_REQUESTS.get();
+    }
+    
+    /**
+     * Get the number of synchronization requests which were executed.
+     */
+    public static int getExecutedRequestCount() {
+        return EXECUTED_REQUESTS.get();
+    }
+    
     @Override
     protected void onHandleAction(Intent intent)
             throws ActionExecutionFailedException, InterruptedException {
+        if (intent.hasExtra(EXTRA_TARGETED_SYNC)) {
+            // The targeted synchronization is already running: this service
+            // is kept alive until it is done.
+            final Future<?> targetedSync = targetedSyncs.remove(intent
+                    .getIntExtra(EXTRA_TARGETED_SYNC, 0));
+            if (targetedSync != null) {
+                try {
+                    targetedSync.get();
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Targeted synchronization failed", e);
+                }
+            }
+            return;
+        }
+        
+        final long requestTime = intent.getLongExtra(EXTRA_REQUEST_TIME,
+            SystemClock.elapsedRealtime());
+        final boolean dueOnly = intent.getBooleanExtra(EXTRA_DUE_ONLY, false);
+        final boolean fresh = intent.getBooleanExtra(EXTRA_ACCOUNTS_CHANGED,
+            false) || intent.getBooleanExtra(EXTRA_USER_REQUEST, false);
+        
+        // A request received while a synchronization is running waits for
+        // this lock, and is then merged.
+        synchronized (SYNC_LOCK) {
+            if (isCovered(requestTime, dueOnly, fresh)) {
+                Log.i(TAG, "Synchronization request merged ("
+                        + MERGED_REQUESTS.incrementAndGet() + " merged, "
+                        + EXECUTED_REQUESTS.get() + " executed)");
+                return;
+            }
+            
+            final long syncStart = SystemClock.elapsedRealtime();
+            if (sync(intent, dueOnly)) {
+                lastSyncStart = syncStart;
+                lastSyncEnd = SystemClock.elapsedRealtime();
+                lastSyncFull = !dueOnly;
+                EXECUTED_REQUESTS.incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * Check if a request is covered by the last synchronization: the request
+     * must have been received while this synchronization was queued or
+     * running. A synchronization of due accounts only covers requests for due
+     * accounts. This method must be called with {@link #SYNC_LOCK}.
+     * @param fresh if <code>true</code>, the request is only covered by a
+     *            synchronization started after it
+     */
+    private static boolean isCovered(long requestTime, boolean dueOnly,
+            boolean fresh) {
+        if (lastSyncEnd == -1 || !lastSyncFull && !dueOnly) {
+            return false;
+        }
+        if (fresh) {
+            // New accounts may not have been read by the last
+            // synchronization, and the user expects up-to-date accounts.
+            return requestTime <= lastSyncStart;
+        }
+        return requestTime <= lastSyncEnd;
+    }
+    
+    /**
+     * Synchronize accounts.
+     * @return <code>true</code> if accounts were synchronized
+     */
+    private boolean sync(Intent intent, boolean dueOnly)
+            throws ActionExecutionFailedException, InterruptedException {
         if (!isNetworkConnected()) {
             Log.w(TAG, "Skip user account synchronization "
                     + "since network is not available");
-            return;
+            // The alarm is not repeating: it must be set again.
+            startService(new Intent(this, SchedulerService.class).putExtra(
+                SchedulerService.EXTRA_OFFLINE, true));
+            return false;
         }
         
         Log.i(TAG, "Starting user account synchronization");
@@ -207,10 +531,10 @@ public class SyncService extends ActionService {
         
         final boolean trackUpdates = intent.getBooleanExtra(
             EXTRA_TRACK_UPDATES, false);
-        final int retryCount = intent.getIntExtra(EXTRA_RETRY_COUNT, 0);
         
+        boolean synced = false;
         try {
-            doSync(trackUpdates, retryCount);
+            synced = doSync(trackUpdates, dueOnly, null);
         } catch (UnknownHostException e) {
             Log.w(TAG, "Skip user account synchronization "
                     + "since network is not available", e);
@@ -232,45 +556,214 @@ public class SyncService extends ActionService {
             
             Log.i(TAG, "User account synchronization done");
             fireOnSyncDone();
+            
+            // Schedule the next synchronization.
+            startService(new Intent(this, SchedulerService.class));
         }
+        return synced;
     }
     
-    private void doSync(boolean trackUpdates, int retryCount)
-            throws IOException {
+    /**
+     * Synchronize accounts requested by the user. The foreground notification
+     * is not displayed, since the user is waiting for these accounts.
+     */
+    private void syncAccounts(int[] accountIds) {
+        if (!isNetworkConnected()) {
+            Log.w(TAG, "Skip targeted synchronization "
+                    + "since network is not available");
+            fireOnSyncDone();
+            return;
+        }
+        
+        Log.i(TAG, "Starting synchronization of " + accountIds.length
+                + " account(s)");
+        final long start = SystemClock.elapsedRealtime();
+        try {
+            doSync(false, false, accountIds);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Targeted synchronization interrupted");
+        } catch (IOException e) {
+            Log.w(TAG, "Targeted synchronization failed", e);
+            BugSenseHandler.log(TAG, e);
+            fireOnSyncError(e);
+        } finally {
+            Log.i(TAG, "Synchronization of " + accountIds.length
+                    + " account(s) done in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+            fireOnSyncDone();
+        }
+    }
+    
+    /**
+     * Synchronize user accounts.
+     * @param accountIds accounts to synchronize: if <code>null</code>, due
+     *            accounts or every account are synchronized
+     * @return <code>false</code> if accounts were skipped since the website
+     *         is unavailable
+     */
+    private boolean doSync(boolean trackUpdates, boolean dueOnly,
+            int[] accountIds) throws IOException, InterruptedException {
         boolean accountsUpdated = false;
-        boolean tryLater = false;
         
+        final CircuitBreaker circuitBreaker = CircuitBreaker.getInstance(this);
+        if (circuitBreaker.getState() == CircuitBreaker.OPEN) {
+            Log.w(TAG, "Skip user account synchronization "
+                    + "since the website is unavailable");
+            return false;
+        }
+        
+        final AccountCache accountCache = AccountCache.getInstance(this);
         final AccountRepository accountRepository = new AccountRepository(this);
-        final List<Account> accounts = accountRepository.list();
-        for (final Account account : accounts) {
-            Log.i(TAG, "Synchronizing account for user " + account.login);
-            
-            final int accountStatusBeforeUpdate = account.status;
-            
-            try {
-                // Read account data from the website.
-                accountNetworkClient.update(account);
-                
-                // Update the local database.
-                accountRepository.update(account);
-                
-                if (trackUpdates && account.status != accountStatusBeforeUpdate) {
-                    accountsUpdated = true;
+        final Map<Integer, SyncSchedule> schedules;
+        final List<Account> accounts;
+        final int priority;
+        if (accountIds != null) {
+            schedules = accountRepository.listSchedules();
+            accounts = new ArrayList<Account>(accountIds.length);
+            for (final int accountId : accountIds) {
+                final Account account = accountRepository.get(accountId);
+                if (account != null) {
+                    accounts.add(account);
                 }
-            } catch (UnknownHostException e) {
-                // Network became unavailable.
-                Log.w(TAG, "Skip user account synchronization "
-                        + "since network is not available", e);
-                return;
-            } catch (IOException e) {
-                Log.w(TAG, "Account update failed for user " + account.login, e);
-                
-                if (!(e instanceof SocketTimeoutException)) {
-                    BugSenseHandler.log(TAG, e);
+            }
+            priority = PRIORITY_INTERACTIVE;
+        } else if (dueOnly) {
+            // Only due accounts are read from the ledger, in due order.
+            schedules = new HashMap<Integer, SyncSchedule>(8);
+            accounts = accountRepository.listDueAccounts(
+                System.currentTimeMillis() + DUE_TOLERANCE, schedules);
+            Log.i(TAG, accounts.size() + " account(s) due for synchronization");
+            priority = PRIORITY_BACKGROUND;
+        } else {
+            schedules = accountRepository.listSchedules();
+            accounts = accountCache.list();
+            priority = PRIORITY_BACKGROUND;
+        }
+        
+        // Schedules are computed even if background synchronizations are
+        // disabled.
+        long minInterval = SchedulerService.getUpdateInterval(this);
+        if (minInterval == 0) {
+            minInterval = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
+        }
+        
+        // Each account is synchronized by its own task, with its own session:
+        // results are collected in the account order.
+        final List<Future<AccountSyncResult>> results = new ArrayList<Future<AccountSyncResult>>(
+                accounts.size());
+        final List<Account> remainingAccounts = new ArrayList<Account>(
+                accounts);
+        // Accounts requested by the user are left to targeted
+        // synchronizations, which read their schedules when they start.
+        final Set<Integer> skippedAccountIds = accountIds != null ? null
+                : targetedAccountIds;
+        if (circuitBreaker.getState() == CircuitBreaker.HALF_OPEN
+                && !accounts.isEmpty()) {
+            // The website is probed with a single account, before other
+            // accounts are synchronized. A rejected or skipped account does
+            // not tell whether the website is available: another account is
+            // tried.
+            final List<Account> probeAccounts = getProbeAccounts(accounts,
+                schedules);
+            for (int i = 0; i < MAX_PROBES && i < probeAccounts.size(); ++i) {
+                final Account account = probeAccounts.get(i);
+                final PrioritizedTask probe = new PrioritizedTask(
+                        new AccountSyncTask(accountNetworkClient,
+                                circuitBreaker, listenerHandler, account,
+                                skippedAccountIds), priority);
+                probe.run();
+                results.add(probe);
+                remainingAccounts.remove(account);
+                final AccountSyncResult result = getResult(probe);
+                final IOException e = result.error;
+                if (!result.targeted
+                        && !(e instanceof AccountRejectedException)) {
+                    break;
+                }
+            }
+        }
+        for (final Account account : remainingAccounts) {
+            // Tasks are not submitted, since the executor would wrap them
+            // without their priority.
+            final PrioritizedTask task = new PrioritizedTask(
+                    new AccountSyncTask(accountNetworkClient, circuitBreaker,
+                            listenerHandler, account, skippedAccountIds),
+                    priority);
+            syncExecutor.execute(task);
+            results.add(task);
+        }
+        
+        // Updated accounts are written to the local database once every
+        // result is collected, in a single transaction.
+        final List<Account> updatedAccounts = new ArrayList<Account>(
+                accounts.size());
+        final List<SyncSchedule> updatedSchedules = new ArrayList<SyncSchedule>(
+                accounts.size());
+        int failedCount = 0;
+        int skippedCount = 0;
+        try {
+            for (final Future<AccountSyncResult> future : results) {
+                final AccountSyncResult result = getResult(future);
+                final IOException e = result.error;
+                if (result.skipped) {
+                    // The circuit was opened: this account is still due.
+                    ++skippedCount;
+                    continue;
+                }
+                if (result.targeted) {
+                    // The schedule is updated by the targeted
+                    // synchronization.
+                    continue;
+                }
+                if (e instanceof UnknownHostException) {
+                    // Network became unavailable: this synchronization is
+                    // not complete.
+                    throw e;
                 }
                 
-                tryLater = true;
+                SyncSchedule schedule = schedules.get(result.account.id);
+                if (schedule == null) {
+                    schedule = new SyncSchedule(result.account.id);
+                }
+                final long now = System.currentTimeMillis();
+                if (e == null) {
+                    schedule.onSynchronized(result.statusChanged, minInterval,
+                        now);
+                    updatedAccounts.add(result.account);
+                    if (trackUpdates && result.statusChanged) {
+                        accountsUpdated = true;
+                    }
+                } else {
+                    // Only this account will be synchronized again.
+                    schedule.onSyncFailed(minInterval, now, random);
+                    ++failedCount;
+                    Log.w(TAG, "Account update failed for user "
+                            + result.account.login + " (" + schedule.failures
+                            + " failure(s)): retry in "
+                            + (schedule.nextDue - now) / 1000 + " s", e);
+                    
+                    if (!(e instanceof SocketTimeoutException)
+                            && !(e instanceof AccountRejectedException)) {
+                        BugSenseHandler.log(TAG, e);
+                    }
+                }
+                updatedSchedules.add(schedule);
             }
+        } finally {
+            // Pending tasks are useless if this synchronization ended early.
+            for (final Future<AccountSyncResult> future : results) {
+                future.cancel(true);
+            }
+            
+            // Updates are saved even if this synchronization ended early.
+            accountCache.updateAll(updatedAccounts);
+            accountRepository.updateSchedules(updatedSchedules);
+            new SessionStore(this).save();
+        }
+        
+        if (failedCount != 0 || skippedCount != 0) {
+            Log.i(TAG, failedCount + " account(s) failed, " + skippedCount
+                    + " account(s) skipped since the website is unavailable");
         }
         
         if (accountsUpdated) {
@@ -294,27 +787,45 @@ public class SyncService extends ActionService {
             nm.notify(R.string.notif_account_updated, n);
         }
         
-        if (tryLater) {
-            // There was trouble while trying to update accounts:
-            // try again later.
-            retryCount += 1;
-            if (retryCount == RETRY_MAX) {
-                // Do not try again as we reached the limit.
-                Log.w(TAG, "Retry count reached: "
-                        + "skip background account synchronization");
+        return skippedCount == 0;
+    }
+    
+    /**
+     * Get accounts which can be used for probing the website. Accounts which
+     * were successfully synchronized last time are returned first.
+     */
+    private static List<Account> getProbeAccounts(List<Account> accounts,
+            Map<Integer, SyncSchedule> schedules) {
+        final List<Account> probeAccounts = new ArrayList<Account>(
+                accounts.size());
+        final List<Account> failedAccounts = new ArrayList<Account>();
+        for (final Account account : accounts) {
+            final SyncSchedule schedule = schedules.get(account.id);
+            if (schedule == null || schedule.failures == 0) {
+                probeAccounts.add(account);
             } else {
-                Log.i(TAG, "Scheduling background account synchronization "
-                        + "in order to resolve account update trouble");
-                
-                final PendingIntent syncLaterIntent = PendingIntent.getService(
-                    this, 0, new Intent(this, SyncService.class).putExtra(
-                        EXTRA_RETRY_COUNT, retryCount),
-                    PendingIntent.FLAG_CANCEL_CURRENT);
-                final AlarmManager am = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
-                am.set(AlarmManager.RTC_WAKEUP, System.currentTimeMillis()
-                        + RETRY_PERIOD, syncLaterIntent);
+                failedAccounts.add(account);
             }
         }
+        probeAccounts.addAll(failedAccounts);
+        return probeAccounts;
+    }
+    
+    private static AccountSyncResult getResult(
+            Future<AccountSyncResult> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Account synchronization failed",
+                    cause);
+        }
     }
     
     private void fireOnSyncError(Exception cause) {
@@ -327,4 +838,171 @@ public class SyncService extends ActionService {
     private void fireOnSyncDone() {
         listenerHandler.sendEmptyMessage(SYNC_DONE);
     }
+    
+    /**
+     * Task for synchronizing a single account. The local database is not
+     * updated by this task. The result of the request to the website is
+     * reported to the circuit breaker. Progress events are sent to the
+     * listener handler as soon as they happen: the listener does not wait for
+     * other accounts.
+     * @author Pixmob
+     */
+    private static class AccountSyncTask implements Callable<AccountSyncResult> {
+        private final AccountNetworkClient client;
+        private final CircuitBreaker circuitBreaker;
+        private final Handler listenerHandler;
+        private final Account account;
+        private final Set<Integer> skippedAccountIds;
+        
+        public AccountSyncTask(final AccountNetworkClient client,
+                final CircuitBreaker circuitBreaker,
+                final Handler listenerHandler, final Account account,
+                final Set<Integer> skippedAccountIds) {
+            this.client = client;
+            this.circuitBreaker = circuitBreaker;
+            this.listenerHandler = listenerHandler;
+            this.account = account;
+            this.skippedAccountIds = skippedAccountIds;
+        }
+        
+        @Override
+        public AccountSyncResult call() {
+            final AccountSyncResult result = new AccountSyncResult(account);
+            if (isSkipped()) {
+                Log.i(TAG, "Skip account for user " + account.login
+                        + ": a targeted synchronization is running");
+                result.targeted = true;
+                return result;
+            }
+            if (!circuitBreaker.allowRequest()) {
+                result.skipped = true;
+                return result;
+            }
+            
+            Log.i(TAG, "Synchronizing account for user " + account.login);
+            listenerHandler.obtainMessage(ACCOUNT_SYNC_STARTED, account.id, 0)
+                    .sendToTarget();
+            
+            final int accountStatusBeforeUpdate = account.status;
+            boolean reported = false;
+            try {
+                // Read account data from the website.
+                client.update(account);
+                
+                result.statusChanged = account.status != accountStatusBeforeUpdate;
+                circuitBreaker.onSuccess();
+                reported = true;
+            } catch (AccountRejectedException e) {
+                // The account is at fault: the website is not involved.
+                result.error = e;
+            } catch (UnknownHostException e) {
+                // The device is offline: the website is not involved.
+                result.error = e;
+            } catch (SocketTimeoutException e) {
+                result.error = e;
+                circuitBreaker.onFailure();
+                reported = true;
+            } catch (InterruptedIOException e) {
+                // This task was cancelled.
+                result.error = e;
+            } catch (IOException e) {
+                result.error = e;
+                circuitBreaker.onFailure();
+                reported = true;
+            } finally {
+                if (!reported) {
+                    circuitBreaker.onAborted();
+                }
+            }
+            
+            if (result.error == null) {
+                listenerHandler.obtainMessage(ACCOUNT_SYNCED, account)
+                        .sendToTarget();
+            } else {
+                listenerHandler.obtainMessage(ACCOUNT_SYNC_FAILED, account.id,
+                    0, result.error).sendToTarget();
+            }
+            return result;
+        }
+        
+        private boolean isSkipped() {
+            if (skippedAccountIds == null) {
+                return false;
+            }
+            synchronized (skippedAccountIds) {
+                return skippedAccountIds.contains(account.id);
+            }
+        }
+    }
+    
+    /**
+     * Outcome of an account synchronization.
+     * @author Pixmob
+     */
+    private static class AccountSyncResult {
+        public final Account account;
+        public boolean statusChanged;
+        public IOException error;
+        /**
+         * Was this account skipped, since the circuit was open?
+         */
+        public boolean skipped;
+        /**
+         * Was this account skipped, since it was synchronized by a targeted
+         * synchronization?
+         */
+        public boolean targeted;
+        
+        public AccountSyncResult(final Account account) {
+            this.account = account;
+        }
+    }
+    
+    /**
+     * Account synchronization task, run by priority. Tasks with the same
+     * priority are run in submission order.
+     * @author Pixmob
+     */
+    private static class PrioritizedTask extends FutureTask<AccountSyncResult>
+            implements Comparable<PrioritizedTask> {
+        private static final AtomicLong SEQUENCE = new AtomicLong();
+        private final int priority;
+        private final long sequence = SEQUENCE.getAndIncrement();
+        
+        public PrioritizedTask(final Callable<AccountSyncResult> callable,
+                final int priority) {
+            super(callable);
+            this.priority = priority;
+        }
+        
+        @Override
+        public int compareTo(PrioritizedTask another) {
+            if (priority != another.priority) {
+                return priority < another.priority ? -1 : 1;
+            }
+            return sequence < another.sequence ? -1
+                    : sequence == another.sequence ? 0 : 1;
+        }
+    }
+    
+    /**
+     * {@link ThreadFactory} for synchronization workers.
+     * @author Pixmob
+     */
+    private static class SyncThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Runnable wrapper = new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            };
+            return new Thread(wrapper, "FM2/SyncWorker-"
+                    + threadCount.incrementAndGet());
+        }
+    }
 }
@@ -40,8 +40,7 @@ public class AccountDetails extends FragmentActivity {
         actionBar.setDisplayShowHomeEnabled(false);
         actionBar.setDisplayShowTitleEnabled(false);
         
-        final Account account = (Account) getIntent().getSerializableExtra(
-            EXTRA_ACCOUNT);
+        final Account account = getIntent().getParcelableExtra(EXTRA_ACCOUNT);
         if (account == null) {
             throw new IllegalStateException("Missing account");
         }
@@ -28,8 +28,11 @@ import java.util.Set;
 
 import org.pixmob.fm2.R;
 import org.pixmob.fm2.model.Account;
+import org.pixmob.fm2.model.AccountCache;
 import org.pixmob.fm2.model.AccountRepository;
 import org.pixmob.fm2.net.AccountNetworkClient;
+import org.pixmob.fm2.net.AccountRejectedException;
+import org.pixmob.fm2.net.SessionStore;
 import org.pixmob.fm2.services.SyncService;
 import org.pixmob.fm2.util.HttpUtils;
 
@@ -73,7 +76,7 @@ public class AccountDetailsFragment extends Fragment implements
     
     public static AccountDetailsFragment newInstance(Account account) {
         final Bundle args = new Bundle(1);
-        args.putSerializable("account", account);
+        args.putParcelable("account", account);
         
         final AccountDetailsFragment f = new AccountDetailsFragment();
         f.setArguments(args);
@@ -82,11 +85,15 @@ public class AccountDetailsFragment extends Fragment implements
     }
     
     public Account getAccount() {
-        return (Account) getArguments().getSerializable("account");
+        return (Account) getArguments().getParcelable("account");
     }
     
+    /**
+     * Reload account details. The account is not synchronized: this is done
+     * by the caller.
+     */
     public void refresh() {
-        onActionRefresh();
+        reload();
     }
     
     @Override
@@ -116,6 +123,16 @@ public class AccountDetailsFragment extends Fragment implements
     }
     
     private void onActionRefresh() {
+        // Only this account is synchronized, ahead of background
+        // synchronizations. The page is loaded with the synchronization
+        // session: a single authentication is made.
+        getActivity().startService(
+            new Intent(getActivity(), SyncService.class).putExtra(
+                SyncService.EXTRA_ACCOUNT_IDS, new int[] { getAccount().id }));
+        reload();
+    }
+    
+    private void reload() {
         webLoadingPanel.setVisibility(View.VISIBLE);
         webLoadingError.setVisibility(View.GONE);
         webView.setVisibility(View.GONE);
@@ -186,7 +203,7 @@ public class AccountDetailsFragment extends Fragment implements
     @Override
     public Loader<Set<String>> onCreateLoader(int id, Bundle args) {
         final Account account = args != null ? (Account) args
-                .getSerializable("account") : null;
+                .getParcelable("account") : null;
         return new GetAuthCookies(getActivity(), account);
     }
     
@@ -251,7 +268,8 @@ public class AccountDetailsFragment extends Fragment implements
                             + account.login, e);
                     
                     if (!(e instanceof UnknownHostException)
-                            && !(e instanceof SocketTimeoutException)) {
+                            && !(e instanceof SocketTimeoutException)
+                            && !(e instanceof AccountRejectedException)) {
                         // Only report useful errors.
                         BugSenseHandler.log(TAG, e);
                     }
@@ -261,13 +279,20 @@ public class AccountDetailsFragment extends Fragment implements
         }
         
         private Set<String> authenticate() throws IOException {
-            cookies = new HashSet<String>(4);
-            final AccountNetworkClient client = new AccountNetworkClient(
-                    getContext());
-            if (!client.authenticate(account, cookies)) {
-                throw new IOException("Authentication failed for user "
-                        + account.login);
+            Account fullAccount = account;
+            if (fullAccount.password == null) {
+                // Accounts from a paged list do not include passwords.
+                fullAccount = new AccountRepository(getContext())
+                        .get(account.id);
+                if (fullAccount == null) {
+                    throw new IOException("Account not found for user "
+                            + account.login);
+                }
             }
+            
+            cookies = new HashSet<String>(4);
+            new AccountNetworkClient(getContext()).openSession(fullAccount,
+                cookies);
             return cookies;
         }
     }
@@ -299,7 +324,7 @@ public class AccountDetailsFragment extends Fragment implements
                                 final boolean dualPane = getSupportFragmentManager()
                                         .findFragmentById(R.id.accounts) != null;
                                 final Account account = (Account) getArguments()
-                                        .getSerializable("account");
+                                        .getParcelable("account");
                                 new DeleteAccountTask(getActivity(), account,
                                         dualPane).execute();
                             }
@@ -326,9 +351,10 @@ public class AccountDetailsFragment extends Fragment implements
         
         @Override
         protected Void doInBackground(Void... params) {
-            final AccountRepository accountRepository = new AccountRepository(
-                    context);
-            accountRepository.delete(account);
+            AccountCache.getInstance(context).delete(account);
+            
+            // The session of a deleted account is useless.
+            new SessionStore(context).remove(account.login);
             return null;
         }
         
@@ -339,9 +365,9 @@ public class AccountDetailsFragment extends Fragment implements
                 context.getString(R.string.account_deleted), Toast.LENGTH_SHORT)
                     .show();
             
-            if (dualPane) {
-                context.startService(new Intent(context, SyncService.class));
-            } else {
+            // The account list is updated by its loader: there is no need to
+            // synchronize accounts.
+            if (!dualPane) {
                 context.finish();
             }
         }
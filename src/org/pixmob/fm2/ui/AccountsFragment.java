@@ -16,17 +16,24 @@
 package org.pixmob.fm2.ui;
 
 import static org.pixmob.fm2.Constants.DEBUG;
+import static org.pixmob.fm2.Constants.SHARED_PREFS;
+import static org.pixmob.fm2.Constants.SP_KEY_ACCOUNT_SORT_KEY;
 import static org.pixmob.fm2.Constants.TAG;
 
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 import org.pixmob.fm2.R;
 import org.pixmob.fm2.model.Account;
+import org.pixmob.fm2.model.AccountCache;
 import org.pixmob.fm2.model.AccountRepository;
+import org.pixmob.fm2.model.AccountSnapshot;
+import org.pixmob.fm2.model.PagedAccountList;
+import org.pixmob.fm2.services.AccountTransferService;
 import org.pixmob.fm2.services.SyncService;
 
+import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.ComponentName;
@@ -36,6 +43,7 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.SystemClock;
 import android.support.v4.app.DialogFragment;
@@ -50,11 +58,13 @@ import android.support.v4.view.Menu;
 import android.support.v4.view.MenuItem;
 import android.text.method.PasswordTransformationMethod;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.MenuInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
@@ -71,16 +81,19 @@ import com.bugsense.trace.BugSenseHandler;
  */
 public class AccountsFragment extends ListFragment implements
         LoaderCallbacks<List<Account>>, SyncService.Listener, ServiceConnection {
+    private static final int REQUEST_IMPORT_FILE = 1;
     private AccountAdapter accountAdapter;
     private SyncService syncService;
     private Intent syncServiceIntent;
     private boolean dualPane;
     private int selectedAccountIndex;
+    private long createdTime;
+    private boolean firstFrameLogged;
     
     @Override
     public void onSyncDone() {
-        // Update the list with new content.
-        getLoaderManager().getLoader(0).onContentChanged();
+        // Rows were updated as soon as each account was synchronized.
+        accountAdapter.clearSyncing();
     }
     
     @Override
@@ -89,6 +102,21 @@ public class AccountsFragment extends ListFragment implements
             Toast.LENGTH_SHORT).show();
     }
     
+    @Override
+    public void onAccountSyncStarted(int accountId) {
+        accountAdapter.setSyncing(accountId, true);
+    }
+    
+    @Override
+    public void onAccountSynced(Account account) {
+        accountAdapter.updateAccount(account);
+    }
+    
+    @Override
+    public void onAccountSyncFailed(int accountId, Exception cause) {
+        accountAdapter.setSyncing(accountId, false);
+    }
+    
     @Override
     public Loader<List<Account>> onCreateLoader(int id, Bundle args) {
         if (DEBUG) {
@@ -114,7 +142,7 @@ public class AccountsFragment extends ListFragment implements
     }
     
     @Override
-    public void onLoadFinished(Loader<List<Account>> loader,
+    public void onLoadFinished(final Loader<List<Account>> loader,
             final List<Account> data) {
         if (DEBUG) {
             Log.d(TAG, "AccountsFragment.onLoadFinished");
@@ -133,6 +161,12 @@ public class AccountsFragment extends ListFragment implements
                 // Set the new data in the adapter.
                 accountAdapter.setData(data);
                 
+                if (DEBUG && !firstFrameLogged) {
+                    firstFrameLogged = true;
+                    logFirstFrame(((AccountListLoader) loader)
+                            .isSnapshot(data));
+                }
+                
                 if (dualPane) {
                     getListView().setItemChecked(selectedAccountIndex, false);
                 }
@@ -159,16 +193,30 @@ public class AccountsFragment extends ListFragment implements
         }
     }
     
+    private void logFirstFrame(final boolean fromSnapshot) {
+        // This task is run once the list is drawn.
+        getListView().post(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "Time to first account list frame: "
+                        + (SystemClock.uptimeMillis() - createdTime) + " ms ("
+                        + (fromSnapshot ? "snapshot" : "database") + ")");
+            }
+        });
+    }
+    
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
+        createdTime = SystemClock.uptimeMillis();
         
         setEmptyText(getString(R.string.no_account));
         setHasOptionsMenu(true);
         
-        syncServiceIntent = new Intent(getActivity(), SyncService.class);
+        syncServiceIntent = new Intent(getActivity(), SyncService.class)
+                .putExtra(SyncService.EXTRA_USER_REQUEST, true);
         
-        accountAdapter = new AccountAdapter(getActivity());
+        accountAdapter = new AccountAdapter(getActivity(), getListView());
         setListAdapter(accountAdapter);
         setListShown(false);
         
@@ -209,7 +257,12 @@ public class AccountsFragment extends ListFragment implements
     public void onStop() {
         super.onStop();
         
-        // The service is not used anymore by this fragment.
+        // The service is not used anymore by this fragment: the listener is
+        // unset since the service may outlive this fragment.
+        if (syncService != null) {
+            syncService.setListener(null);
+            syncService = null;
+        }
         getActivity().unbindService(this);
     }
     
@@ -222,6 +275,12 @@ public class AccountsFragment extends ListFragment implements
         menu.add(Menu.NONE, R.string.menu_add_account, Menu.NONE,
             R.string.menu_add_account).setIcon(R.drawable.ic_menu_invite)
                 .setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+        menu.add(Menu.NONE, R.string.menu_import_accounts, Menu.NONE,
+            R.string.menu_import_accounts).setShowAsAction(
+            MenuItem.SHOW_AS_ACTION_NEVER);
+        menu.add(Menu.NONE, R.string.menu_export_accounts, Menu.NONE,
+            R.string.menu_export_accounts).setShowAsAction(
+            MenuItem.SHOW_AS_ACTION_NEVER);
         menu.add(Menu.NONE, R.string.menu_prefs, Menu.NONE, R.string.menu_prefs)
                 .setIcon(R.drawable.ic_menu_preferences)
                 .setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
@@ -236,6 +295,12 @@ public class AccountsFragment extends ListFragment implements
             case R.string.menu_add_account:
                 onActionAddAccount();
                 break;
+            case R.string.menu_import_accounts:
+                onActionImportAccounts();
+                break;
+            case R.string.menu_export_accounts:
+                onActionExportAccounts();
+                break;
             case R.string.menu_prefs:
                 onActionPreferences();
                 break;
@@ -243,6 +308,22 @@ public class AccountsFragment extends ListFragment implements
         return super.onOptionsItemSelected(item);
     }
     
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_IMPORT_FILE
+                && resultCode == Activity.RESULT_OK && data != null
+                && data.getData() != null) {
+            getActivity().startService(
+                new Intent(getActivity(), AccountTransferService.class)
+                        .setAction(AccountTransferService.ACTION_IMPORT)
+                        .setData(data.getData())
+                        .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION));
+            Toast.makeText(getActivity(), R.string.importing_accounts,
+                Toast.LENGTH_SHORT).show();
+        }
+    }
+    
     @Override
     public void onDestroy() {
         super.onDestroy();
@@ -276,6 +357,10 @@ public class AccountsFragment extends ListFragment implements
             selectedAccountIndex = position;
             
             final Account account = accountAdapter.getItem(position);
+            if (account == null) {
+                // This account was deleted.
+                return;
+            }
             if (dualPane) {
                 getListView().setItemChecked(position, true);
                 
@@ -315,6 +400,20 @@ public class AccountsFragment extends ListFragment implements
             getSupportFragmentManager(), "dialog");
     }
     
+    private void onActionImportAccounts() {
+        // Let the user pick a file.
+        final Intent i = new Intent(Intent.ACTION_GET_CONTENT).setType(
+            "text/*").addCategory(Intent.CATEGORY_OPENABLE);
+        startActivityForResult(
+            Intent.createChooser(i, getString(R.string.menu_import_accounts)),
+            REQUEST_IMPORT_FILE);
+    }
+    
+    private void onActionExportAccounts() {
+        ExportAccountsDialogFragment.newInstance().show(
+            getSupportFragmentManager(), "dialog");
+    }
+    
     private void onActionPreferences() {
         startActivity(new Intent(getActivity(), Preferences.class));
     }
@@ -332,19 +431,54 @@ public class AccountsFragment extends ListFragment implements
     public void onServiceDisconnected(ComponentName name) {
         // The service is gone: make sure the listener is unset to prevent
         // memory leaks.
-        syncService.setListener(null);
-        syncService = null;
+        if (syncService != null) {
+            syncService.setListener(null);
+            syncService = null;
+        }
     }
     
     /**
-     * Internal class for displaying {@link Account} instances.
+     * Internal class for displaying {@link Account} instances. Accounts are
+     * not copied: the account list is used as is, so that accounts from a
+     * {@link PagedAccountList} are read only when they are displayed. Rows
+     * from a page which is not read yet are displayed as loading, until the
+     * page is read in the background. Synchronized accounts are kept aside,
+     * until a new account list is set.
+     * <p>
+     * Each row is tagged with the displayed account. When the account list
+     * is changed, visible rows are compared with new accounts by identifier:
+     * if rows are the same, only rows with changed fields are bound again.
+     * The list view is not notified, so that its scroll position and checked
+     * state are kept as is.
+     * </p>
      * @author Pixmob
      */
-    private static class AccountAdapter extends ArrayAdapter<Account> {
+    private static class AccountAdapter extends BaseAdapter {
+        private final Context context;
         private final LayoutInflater layoutInflater;
+        private final ListView listView;
+        private final SparseArray<Account> updatedAccounts = new SparseArray<Account>();
+        private final SparseBooleanArray syncingAccounts = new SparseBooleanArray();
+        private final PagedAccountList.Listener pageListener = new PagedAccountList.Listener() {
+            @Override
+            public void onPageLoaded(final PagedAccountList pagedAccounts) {
+                // This method is called from a background thread.
+                listView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (accounts == pagedAccounts) {
+                            notifyDataSetChanged();
+                        }
+                    }
+                });
+            }
+        };
+        private List<Account> accounts = Collections.emptyList();
+        private int bindCount;
         
-        public AccountAdapter(final Context context) {
-            super(context, android.R.layout.simple_list_item_2);
+        public AccountAdapter(final Context context, final ListView listView) {
+            this.context = context;
+            this.listView = listView;
             layoutInflater = (LayoutInflater) context
                     .getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         }
@@ -354,14 +488,164 @@ public class AccountsFragment extends ListFragment implements
          * <code>null</code>, the list is cleared.
          */
         public void setData(List<Account> accounts) {
-            setNotifyOnChange(false);
-            clear();
-            if (accounts != null) {
-                for (final Account account : accounts) {
-                    add(account);
+            final int oldCount = this.accounts.size();
+            if (this.accounts instanceof PagedAccountList) {
+                ((PagedAccountList) this.accounts).setListener(null);
+            }
+            if (accounts instanceof PagedAccountList) {
+                ((PagedAccountList) accounts).setListener(pageListener);
+            }
+            if (accounts == null) {
+                this.accounts = Collections.emptyList();
+            } else {
+                this.accounts = accounts;
+            }
+            updatedAccounts.clear();
+            
+            final int bindCountBefore = bindCount;
+            final boolean sameRows = oldCount == this.accounts.size()
+                    && isShowingSameRows();
+            if (sameRows) {
+                for (int i = 0; i < listView.getChildCount(); ++i) {
+                    final View row = listView.getChildAt(i);
+                    final Account account = getItem(listView
+                            .getFirstVisiblePosition() + i);
+                    if (isChanged((Account) row.getTag(), account)) {
+                        bindView(row, account);
+                    }
+                }
+            } else {
+                notifyDataSetChanged();
+            }
+            
+            if (DEBUG) {
+                // Rows are bound when the list view is laid out.
+                listView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.d(TAG, "Account list set: "
+                                + (bindCount - bindCountBefore)
+                                + " row(s) bound ("
+                                + (sameRows ? "diff" : "full") + ")");
+                    }
+                });
+            }
+        }
+        
+        /**
+         * Check if visible rows display the same accounts as the current
+         * account list, at the same positions.
+         */
+        private boolean isShowingSameRows() {
+            final int rowCount = listView.getChildCount();
+            if (rowCount == 0) {
+                return false;
+            }
+            final int first = listView.getFirstVisiblePosition();
+            if (first + rowCount > accounts.size()) {
+                return false;
+            }
+            for (int i = 0; i < rowCount; ++i) {
+                final Account displayedAccount = (Account) listView
+                        .getChildAt(i).getTag();
+                final Account account = getItem(first + i);
+                if (displayedAccount == null || account == null
+                        || displayedAccount.id != account.id) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        private static boolean isChanged(Account oldAccount, Account account) {
+            return oldAccount.status != account.status
+                    || !equals(oldAccount.name, account.name)
+                    || !equals(oldAccount.phoneNumber, account.phoneNumber);
+        }
+        
+        private static boolean equals(String s1, String s2) {
+            return s1 == null ? s2 == null : s1.equals(s2);
+        }
+        
+        /**
+         * Display a synchronized account, without reading the account list
+         * again.
+         */
+        public void updateAccount(Account account) {
+            updatedAccounts.put(account.id, account);
+            syncingAccounts.delete(account.id);
+            rebindAccount(account.id);
+        }
+        
+        /**
+         * Set whether an account is being synchronized.
+         */
+        public void setSyncing(int accountId, boolean syncing) {
+            if (syncing) {
+                syncingAccounts.put(accountId, true);
+            } else {
+                syncingAccounts.delete(accountId);
+            }
+            rebindAccount(accountId);
+        }
+        
+        /**
+         * Clear the synchronization state of every account.
+         */
+        public void clearSyncing() {
+            for (int i = 0; i < listView.getChildCount(); ++i) {
+                final View row = listView.getChildAt(i);
+                final Account account = (Account) row.getTag();
+                if (account != null && syncingAccounts.get(account.id)) {
+                    syncingAccounts.delete(account.id);
+                    bindView(row, account);
                 }
             }
-            notifyDataSetChanged();
+            syncingAccounts.clear();
+        }
+        
+        /**
+         * Bind the row displaying an account again, if this row is visible.
+         */
+        private void rebindAccount(int accountId) {
+            for (int i = 0; i < listView.getChildCount(); ++i) {
+                final View row = listView.getChildAt(i);
+                final Account account = (Account) row.getTag();
+                if (account != null && account.id == accountId) {
+                    final Account newAccount = getItem(listView
+                            .getFirstVisiblePosition() + i);
+                    if (newAccount != null) {
+                        bindView(row, newAccount);
+                    }
+                    return;
+                }
+            }
+        }
+        
+        @Override
+        public int getCount() {
+            return accounts.size();
+        }
+        
+        @Override
+        public Account getItem(int position) {
+            final Account account = accounts.get(position);
+            if (account == null) {
+                return null;
+            }
+            final Account updatedAccount = updatedAccounts.get(account.id);
+            return updatedAccount == null ? account : updatedAccount;
+        }
+        
+        @Override
+        public long getItemId(int position) {
+            final Account account = getItem(position);
+            return account == null ? -1 : account.id;
+        }
+        
+        @Override
+        public boolean hasStableIds() {
+            return true;
         }
         
         @Override
@@ -375,7 +659,32 @@ public class AccountsFragment extends ListFragment implements
                 row = convertView;
             }
             
-            final Account account = getItem(position);
+            Account account = getItem(position);
+            if (account == null && accounts instanceof PagedAccountList
+                    && !((PagedAccountList) accounts).isLoaded(position)) {
+                bindLoadingView(row);
+                return row;
+            }
+            if (account == null) {
+                // This account was deleted while the list was displayed.
+                account = new Account();
+            }
+            bindView(row, account);
+            
+            return row;
+        }
+        
+        private void bindLoadingView(View row) {
+            ++bindCount;
+            row.setTag(null);
+            ((TextView) row.findViewById(R.id.account_name))
+                    .setText(R.string.loading_account);
+            ((TextView) row.findViewById(R.id.account_number)).setText(null);
+            ((TextView) row.findViewById(R.id.account_status)).setText(null);
+        }
+        
+        private void bindView(View row, Account account) {
+            ++bindCount;
             row.setTag(account);
             
             TextView ctv = (TextView) row.findViewById(R.id.account_name);
@@ -393,54 +702,171 @@ public class AccountsFragment extends ListFragment implements
             }
             
             ctv = (TextView) row.findViewById(R.id.account_status);
-            if (account.status == 0) {
+            if (syncingAccounts.get(account.id)) {
+                ctv.setText(R.string.status_step_synchronizing);
+            } else if (account.status == 0) {
                 ctv.setText(R.string.unknown_status_step);
             } else {
                 ctv.setText(String.format(
-                    getContext().getString(R.string.status_step),
-                    account.status));
+                    context.getString(R.string.status_step), account.status));
             }
-            
-            return row;
         }
     }
     
     /**
-     * Background task for loading accounts.
+     * Background task for loading accounts. Accounts are loaded again only if
+     * they were changed. If there are many accounts, a
+     * {@link PagedAccountList} is used. When this loader is started for the
+     * first time, accounts from the {@link AccountSnapshot} are delivered
+     * while the database is read.
      * @author Pixmob
      */
     private static class AccountListLoader extends
-            AsyncTaskLoader<List<Account>> {
+            AsyncTaskLoader<List<Account>> implements AccountCache.Listener {
+        /**
+         * Accounts are paged above this account count.
+         */
+        private static final int PAGED_LIST_THRESHOLD = 100;
+        private final AccountCache accountCache;
+        private final Handler handler = new Handler();
+        private final Runnable contentChangedNotifier = new Runnable() {
+            @Override
+            public void run() {
+                onContentChanged();
+            }
+        };
         private List<Account> accounts;
+        private List<Account> snapshotAccounts;
+        private boolean snapshotRead;
+        private volatile long accountsVersion;
+        private volatile String accountsSortKey;
         
         public AccountListLoader(final Context context) {
             super(context);
+            accountCache = AccountCache.getInstance(context);
+        }
+        
+        @Override
+        public void onAccountsChanged() {
+            // This method may be called from any thread: the loader must be
+            // notified in the main thread.
+            handler.post(contentChangedNotifier);
+        }
+        
+        @Override
+        public void onAccountsUpdated(
+                final Collection<Account> updatedAccounts, final long version) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    updateAccounts(updatedAccounts, version);
+                }
+            });
+        }
+        
+        /**
+         * Update loaded accounts in place. Displayed rows are updated by the
+         * synchronization listener: accounts are not delivered again.
+         */
+        private void updateAccounts(Collection<Account> updatedAccounts,
+                long version) {
+            if (accounts == null || accountsVersion != version - 1) {
+                // Other changes require a full reload.
+                onContentChanged();
+                return;
+            }
+            if (accounts instanceof PagedAccountList) {
+                // Only pages in memory are updated: other pages are read
+                // from the database.
+                ((PagedAccountList) accounts).update(updatedAccounts);
+            } else {
+                // Loaded accounts are patched in a single pass.
+                final SparseArray<Account> updatedById = new SparseArray<Account>(
+                        updatedAccounts.size());
+                for (final Account account : updatedAccounts) {
+                    updatedById.put(account.id, account);
+                }
+                for (int i = 0; i < accounts.size(); ++i) {
+                    final Account account = updatedById.get(accounts
+                            .get(i).id);
+                    if (account != null) {
+                        accounts.set(i, account);
+                    }
+                }
+            }
+            accountsVersion = version;
+            if (DEBUG) {
+                Log.d(TAG, updatedAccounts.size()
+                        + " account(s) updated without reloading");
+            }
         }
         
         @Override
         protected void onStartLoading() {
             super.onStartLoading();
+            accountCache.addListener(this);
             
-            // Force account loading, since we do not keep track of account
-            // updates.
-            forceLoad();
+            if (accounts != null) {
+                deliverResult(accounts);
+            } else if (!snapshotRead) {
+                // The snapshot is small enough to be read from the main
+                // thread: the first frame does not wait for the database.
+                snapshotRead = true;
+                snapshotAccounts = AccountSnapshot.read(getContext(),
+                    getSortKey());
+                if (snapshotAccounts != null) {
+                    deliverResult(snapshotAccounts);
+                }
+            }
+            if (takeContentChanged() || accounts == null
+                    || accountsVersion != accountCache.getVersion()
+                    || !getSortKey().equals(accountsSortKey)) {
+                forceLoad();
+            } else if (DEBUG) {
+                Log.d(TAG, "User accounts are up to date");
+            }
+        }
+        
+        @Override
+        protected void onReset() {
+            super.onReset();
+            accountCache.removeListener(this);
+            handler.removeCallbacks(contentChangedNotifier);
+            accounts = null;
+            snapshotAccounts = null;
+        }
+        
+        /**
+         * Check if accounts were read from the snapshot.
+         */
+        public boolean isSnapshot(List<Account> data) {
+            return data != null && data == snapshotAccounts;
         }
         
         @Override
         public List<Account> loadInBackground() {
-            if (accounts != null) {
-                deliverResult(accounts);
-            }
-            
             if (DEBUG) {
                 Log.d(TAG, "Loading user accounts");
             }
             List<Account> newAccounts = Collections.emptyList();
-            final AccountRepository accountRepository = new AccountRepository(
-                    getContext());
             try {
-                newAccounts = accountRepository.list();
-                Collections.sort(newAccounts, AccountComparator.INSTANCE);
+                accountsVersion = accountCache.getVersion();
+                accountsSortKey = getSortKey();
+                
+                // Accounts are sorted by the database.
+                final AccountRepository accountRepository = new AccountRepository(
+                        getContext());
+                final int accountCount = accountRepository.count();
+                if (accountCount > PAGED_LIST_THRESHOLD) {
+                    final PagedAccountList pagedAccounts = new PagedAccountList(
+                            accountRepository, accountCount, accountsSortKey);
+                    // The first page is displayed when the list is shown:
+                    // other pages are read in the background.
+                    pagedAccounts.load(0);
+                    newAccounts = pagedAccounts;
+                } else {
+                    newAccounts = accountCache.list(accountsSortKey);
+                }
             } catch (Exception e) {
                 Log.e(TAG, "Account loading failed", e);
                 BugSenseHandler.log(TAG, e);
@@ -449,26 +875,17 @@ public class AccountsFragment extends ListFragment implements
             accounts = newAccounts;
             return newAccounts;
         }
-    }
-    
-    /**
-     * {@link Account} comparator.
-     * @author Pixmob
-     */
-    private static class AccountComparator implements Comparator<Account> {
-        public static final Comparator<Account> INSTANCE = new AccountComparator();
         
-        @Override
-        public int compare(Account a1, Account a2) {
-            final String n1 = a1.phoneNumber;
-            final String n2 = a2.phoneNumber;
-            if (n1 == null) {
-                return 1;
-            }
-            if (n2 == null) {
-                return 0;
+        private String getSortKey() {
+            final String sortKey = getContext().getSharedPreferences(
+                SHARED_PREFS, Context.MODE_PRIVATE).getString(
+                SP_KEY_ACCOUNT_SORT_KEY, AccountRepository.SORT_BY_PHONE_NUMBER);
+            try {
+                AccountRepository.checkSortKey(sortKey);
+                return sortKey;
+            } catch (IllegalArgumentException e) {
+                return AccountRepository.SORT_BY_PHONE_NUMBER;
             }
-            return n1.compareTo(n2);
         }
     }
     
@@ -546,9 +963,7 @@ public class AccountsFragment extends ListFragment implements
             if (login.length() == 0 || password.length() == 0) {
                 missingData = true;
             } else {
-                final AccountRepository accountRepository = new AccountRepository(
-                        context.getApplicationContext());
-                accountRepository.create(login, password);
+                AccountCache.getInstance(context).create(login, password);
             }
             return null;
         }
@@ -564,11 +979,54 @@ public class AccountsFragment extends ListFragment implements
                     context.getString(R.string.adding_account),
                     Toast.LENGTH_SHORT).show();
                 context.startService(new Intent(
-                        context.getApplicationContext(), SyncService.class));
+                        context.getApplicationContext(), SyncService.class)
+                        .putExtra(SyncService.EXTRA_ACCOUNTS_CHANGED, true));
             }
         }
     }
     
+    /**
+     * Dialog for exporting accounts. Passwords are only exported if the user
+     * asks for it.
+     */
+    public static class ExportAccountsDialogFragment extends DialogFragment {
+        public static ExportAccountsDialogFragment newInstance() {
+            return new ExportAccountsDialogFragment();
+        }
+        
+        @Override
+        public Dialog onCreateDialog(Bundle savedInstanceState) {
+            final LayoutInflater inflater = LayoutInflater.from(getActivity());
+            final View content = inflater.inflate(
+                R.layout.export_accounts_dialog, null);
+            final CheckBox includePasswords = (CheckBox) content
+                    .findViewById(R.id.include_passwords);
+            
+            return new AlertDialog.Builder(getActivity())
+                    .setTitle(R.string.menu_export_accounts)
+                    .setView(content)
+                    .setPositiveButton(R.string.dialog_export,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog,
+                                    int which) {
+                                final Context context = getActivity();
+                                context.startService(new Intent(context,
+                                        AccountTransferService.class)
+                                        .setAction(
+                                            AccountTransferService.ACTION_EXPORT)
+                                        .putExtra(
+                                            AccountTransferService.EXTRA_INCLUDE_PASSWORDS,
+                                            includePasswords.isChecked()));
+                                Toast.makeText(context,
+                                    R.string.exporting_accounts,
+                                    Toast.LENGTH_SHORT).show();
+                            }
+                        }).setNegativeButton(R.string.dialog_cancel, null)
+                    .create();
+        }
+    }
+    
     public static class MissingAccountDataDialog extends DialogFragment {
         public Dialog onCreateDialog(Bundle savedInstanceState) {
             return new AlertDialog.Builder(getActivity())
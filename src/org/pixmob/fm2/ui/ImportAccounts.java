@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.ui;
+
+import static org.pixmob.fm2.Constants.TAG;
+
+import org.pixmob.fm2.R;
+import org.pixmob.fm2.services.AccountTransferService;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+import android.widget.Toast;
+
+/**
+ * Activity for importing accounts from a CSV file, which is opened or shared
+ * with this application. Any application can open a file with this activity:
+ * the user must confirm the import before accounts are imported by
+ * {@link AccountTransferService}.
+ * @author Pixmob
+ */
+public class ImportAccounts extends Activity {
+    private static final int DIALOG_CONFIRM_IMPORT = 1;
+    private Uri uri;
+    
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        
+        final Intent intent = getIntent();
+        uri = intent.getData();
+        if (uri == null && Intent.ACTION_SEND.equals(intent.getAction())) {
+            uri = intent.getParcelableExtra(Intent.EXTRA_STREAM);
+        }
+        
+        if (uri == null) {
+            Log.w(TAG, "No account file to import");
+            finish();
+        } else if (savedInstanceState == null) {
+            showDialog(DIALOG_CONFIRM_IMPORT);
+        }
+    }
+    
+    @Override
+    protected Dialog onCreateDialog(int id) {
+        if (id != DIALOG_CONFIRM_IMPORT) {
+            return super.onCreateDialog(id);
+        }
+        return new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_import_accounts)
+                .setIcon(android.R.drawable.ic_dialog_alert)
+                .setMessage(R.string.import_accounts_confirm)
+                .setPositiveButton(R.string.dialog_import,
+                    new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            importAccounts();
+                            finish();
+                        }
+                    })
+                .setNegativeButton(R.string.dialog_cancel,
+                    new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            finish();
+                        }
+                    })
+                .setOnCancelListener(new DialogInterface.OnCancelListener() {
+                    @Override
+                    public void onCancel(DialogInterface dialog) {
+                        finish();
+                    }
+                }).create();
+    }
+    
+    private void importAccounts() {
+        // The read permission granted to this activity is passed to the
+        // service, which reads the file after this activity is finished.
+        startService(new Intent(this, AccountTransferService.class)
+                .setAction(AccountTransferService.ACTION_IMPORT).setData(uri)
+                .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION));
+        Toast.makeText(this, R.string.importing_accounts, Toast.LENGTH_SHORT)
+                .show();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming CSV reader. Records are read one at a time, so that a file of any
+ * size can be read. Fields may be quoted with <code>"</code>. The field
+ * separator is the first <code>,</code> or <code>;</code> found outside
+ * quotes: spreadsheet applications use either one, depending on the locale.
+ * @author Pixmob
+ */
+public final class CsvReader implements Closeable {
+    private static final int MAX_FIELD_LENGTH = 1024;
+    private final Reader reader;
+    private final List<String> fields = new ArrayList<String>(4);
+    private final StringBuilder field = new StringBuilder(32);
+    private final char[] buf = new char[1024];
+    private int bufPos;
+    private int bufLen;
+    private char separator;
+    private int lineNumber;
+    
+    public CsvReader(final Reader reader) {
+        this.reader = reader;
+    }
+    
+    /**
+     * Get the line number of the last record.
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+    
+    /**
+     * Read the next record. Empty lines are skipped.
+     * @return record fields, or <code>null</code> if there is no more record
+     */
+    public String[] readRecord() throws IOException {
+        fields.clear();
+        field.setLength(0);
+        
+        boolean quoted = false;
+        boolean empty = true;
+        for (int c; (c = read()) != -1;) {
+            if (quoted) {
+                if (c == '"') {
+                    if (peek() == '"') {
+                        read();
+                        append((char) c);
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    if (c == '\n') {
+                        ++lineNumber;
+                    }
+                    append((char) c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+                empty = false;
+            } else if (c == '\r') {
+                // Line ends are handled with '\n'.
+            } else if (c == '\n') {
+                ++lineNumber;
+                if (!empty) {
+                    return endRecord();
+                }
+            } else if (isSeparator((char) c)) {
+                fields.add(field.toString());
+                field.setLength(0);
+                empty = false;
+            } else {
+                append((char) c);
+                empty = false;
+            }
+        }
+        
+        if (empty) {
+            return null;
+        }
+        ++lineNumber;
+        return endRecord();
+    }
+    
+    private String[] endRecord() {
+        fields.add(field.toString());
+        return fields.toArray(new String[fields.size()]);
+    }
+    
+    private boolean isSeparator(char c) {
+        if (separator == 0 && (c == ',' || c == ';')) {
+            separator = c;
+        }
+        return c == separator;
+    }
+    
+    private void append(char c) throws IOException {
+        if (field.length() == MAX_FIELD_LENGTH) {
+            throw new IOException("Field too long at line " + (lineNumber + 1));
+        }
+        field.append(c);
+    }
+    
+    private int read() throws IOException {
+        if (bufPos == bufLen && !fill()) {
+            return -1;
+        }
+        return buf[bufPos++];
+    }
+    
+    private int peek() throws IOException {
+        if (bufPos == bufLen && !fill()) {
+            return -1;
+        }
+        return buf[bufPos];
+    }
+    
+    private boolean fill() throws IOException {
+        bufPos = 0;
+        bufLen = reader.read(buf);
+        if (bufLen == -1) {
+            bufLen = 0;
+            return false;
+        }
+        return true;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Streaming CSV writer. Fields are separated with <code>,</code>, and quoted
+ * when required.
+ * @author Pixmob
+ * @see CsvReader
+ */
+public final class CsvWriter implements Closeable {
+    private final Writer writer;
+    
+    public CsvWriter(final Writer writer) {
+        this.writer = writer;
+    }
+    
+    /**
+     * Write a record. A <code>null</code> field is written as an empty field.
+     */
+    public void writeRecord(String... fields) throws IOException {
+        for (int i = 0; i < fields.length; ++i) {
+            if (i != 0) {
+                writer.write(',');
+            }
+            writeField(fields[i]);
+        }
+        writer.write("\r\n");
+    }
+    
+    private void writeField(String field) throws IOException {
+        if (field == null) {
+            return;
+        }
+        
+        boolean quote = false;
+        for (int i = 0; !quote && i < field.length(); ++i) {
+            final char c = field.charAt(i);
+            quote = c == ',' || c == ';' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            writer.write(field);
+            return;
+        }
+        
+        writer.write('"');
+        for (int i = 0; i < field.length(); ++i) {
+            final char c = field.charAt(i);
+            if (c == '"') {
+                writer.write('"');
+            }
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+    
+    /**
+     * Write buffered records.
+     */
+    public void flush() throws IOException {
+        writer.flush();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
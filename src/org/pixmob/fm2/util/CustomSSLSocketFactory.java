@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.util;
+
+import static org.pixmob.fm2.Constants.DEBUG;
+import static org.pixmob.fm2.Constants.TAG;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * {@link SSLSocketFactory} implementation, wrapping the factory of the
+ * application SSL context. TLS handshakes are timed, in order to check how
+ * much time is saved when a session is resumed.
+ * @author Pixmob
+ */
+class CustomSSLSocketFactory extends SSLSocketFactory {
+    private static final Object STATS_LOCK = new Object();
+    private static int fullHandshakeCount;
+    private static long fullHandshakeTime;
+    private static int resumedHandshakeCount;
+    private static long resumedHandshakeTime;
+    
+    private final SSLSocketFactory delegate;
+    private final boolean injectHostname;
+    
+    public CustomSSLSocketFactory(final SSLSocketFactory delegate) {
+        this.delegate = delegate;
+        
+        // Fix slow read:
+        // http://code.google.com/p/android/issues/detail?id=13117
+        // Prior to ICS, the host name is still resolved even if we already
+        // know its IP address, for each connection.
+        injectHostname = Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+    }
+    
+    @Override
+    public Socket createSocket(String host, int port) throws IOException,
+            UnknownHostException {
+        if (injectHostname) {
+            InetAddress addr = InetAddress.getByName(host);
+            injectHostname(addr, host);
+            return track(delegate.createSocket(addr, port));
+        }
+        return track(delegate.createSocket(host, port));
+    }
+    
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return track(delegate.createSocket(host, port));
+    }
+    
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost,
+            int localPort) throws IOException, UnknownHostException {
+        return track(delegate.createSocket(host, port, localHost, localPort));
+    }
+    
+    @Override
+    public Socket createSocket(InetAddress address, int port,
+            InetAddress localAddress, int localPort) throws IOException {
+        return track(delegate.createSocket(address, port, localAddress,
+            localPort));
+    }
+    
+    @Override
+    public Socket createSocket(Socket s, String host, int port,
+            boolean autoClose) throws IOException {
+        if (injectHostname) {
+            injectHostname(s.getInetAddress(), host);
+        }
+        return track(delegate.createSocket(s, host, port, autoClose));
+    }
+    
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+    
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+    
+    private static void injectHostname(InetAddress address, String host) {
+        try {
+            Field field = InetAddress.class.getDeclaredField("hostName");
+            field.setAccessible(true);
+            field.set(address, host);
+        } catch (Exception ignored) {
+        }
+    }
+    
+    private static Socket track(Socket socket) {
+        if (DEBUG && socket instanceof SSLSocket) {
+            // The handshake starts with the first I/O operation, which
+            // immediately follows socket creation.
+            final long start = SystemClock.elapsedRealtime();
+            final long startTimestamp = System.currentTimeMillis();
+            ((SSLSocket) socket)
+                    .addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                        @Override
+                        public void handshakeCompleted(
+                                HandshakeCompletedEvent event) {
+                            // A resumed session was created before this
+                            // handshake.
+                            final boolean resumed = event.getSession()
+                                    .getCreationTime() < startTimestamp;
+                            onHandshakeCompleted(event.getSession()
+                                    .getPeerHost(), resumed, SystemClock
+                                    .elapsedRealtime() - start);
+                        }
+                    });
+        }
+        return socket;
+    }
+    
+    private static void onHandshakeCompleted(String host, boolean resumed,
+            long time) {
+        final int fullCount;
+        final int resumedCount;
+        final long fullAverage;
+        final long resumedAverage;
+        synchronized (STATS_LOCK) {
+            if (resumed) {
+                ++resumedHandshakeCount;
+                resumedHandshakeTime += time;
+            } else {
+                ++fullHandshakeCount;
+                fullHandshakeTime += time;
+            }
+            fullCount = fullHandshakeCount;
+            resumedCount = resumedHandshakeCount;
+            fullAverage = fullCount == 0 ? 0 : fullHandshakeTime / fullCount;
+            resumedAverage = resumedCount == 0 ? 0 : resumedHandshakeTime
+                    / resumedCount;
+        }
+        
+        Log.d(TAG, "TLS handshake with " + host + ": " + time + " ms"
+                + (resumed ? " (session resumed)" : " (full handshake)")
+                + "; average time: " + fullAverage + " ms for " + fullCount
+                + " full handshake(s), " + resumedAverage + " ms for "
+                + resumedCount + " resumed session(s)");
+    }
+}
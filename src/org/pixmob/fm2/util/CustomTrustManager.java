@@ -15,14 +15,20 @@
  */
 package org.pixmob.fm2.util;
 
+import static org.pixmob.fm2.Constants.DEBUG;
 import static org.pixmob.fm2.Constants.TAG;
 
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
@@ -34,9 +40,24 @@ import android.util.Log;
  * {@link X509TrustManager} implementation for using custom SSL certificates.
  * This implementation comes from <a
  * href="http://goo.gl/vLA85">http://goo.gl/vLA85</a>.
+ * <p>
+ * Trusted server certificate chains are cached: a chain is not validated
+ * again until its leaf certificate expires, or until the cache entry is too
+ * old.
+ * </p>
  * @author Pixmob
  */
 class CustomTrustManager implements X509TrustManager {
+    /**
+     * Maximum number of trusted certificate chains to keep.
+     */
+    private static final int MAX_TRUSTED_CHAINS = 16;
+    /**
+     * Maximum time before a trusted certificate chain is validated again.
+     */
+    private static final long MAX_TRUSTED_CHAIN_AGE = 1000 * 60 * 60 * 6;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    
     static class LocalStoreX509TrustManager implements X509TrustManager {
         private X509TrustManager trustManager;
         
@@ -91,6 +112,21 @@ class CustomTrustManager implements X509TrustManager {
     
     private X509Certificate[] acceptedIssuers;
     
+    /**
+     * Trusted certificate chains: the key is built from the leaf certificate
+     * fingerprint and the authentication type, the value is the time when the
+     * entry expires. Entries are kept in access order.
+     */
+    private final Map<String, Long> trustedChains = new LinkedHashMap<String, Long>(
+            MAX_TRUSTED_CHAINS, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_TRUSTED_CHAINS;
+        }
+    };
+    
     public CustomTrustManager(KeyStore localKeyStore) {
         try {
             TrustManagerFactory tmf = TrustManagerFactory
@@ -134,6 +170,22 @@ class CustomTrustManager implements X509TrustManager {
     
     public void checkServerTrusted(X509Certificate[] chain, String authType)
             throws CertificateException {
+        if (chain == null || chain.length == 0) {
+            throw new IllegalArgumentException("Certificate chain is empty");
+        }
+        
+        final String key = getChainKey(chain[0], authType);
+        final long now = System.currentTimeMillis();
+        synchronized (trustedChains) {
+            final Long expiry = trustedChains.get(key);
+            if (expiry != null) {
+                if (now < expiry) {
+                    return;
+                }
+                trustedChains.remove(key);
+            }
+        }
+        
         try {
             Log.d(TAG, "checkServerTrusted() with default trust manager...");
             defaultTrustManager.checkServerTrusted(chain, authType);
@@ -141,6 +193,40 @@ class CustomTrustManager implements X509TrustManager {
             Log.d(TAG, "checkServerTrusted() with local trust manager...");
             localTrustManager.checkServerTrusted(chain, authType);
         }
+        
+        // The chain is trusted until one of its certificates expires.
+        long expiry = now + MAX_TRUSTED_CHAIN_AGE;
+        for (final X509Certificate cert : chain) {
+            expiry = Math.min(expiry, cert.getNotAfter().getTime());
+        }
+        synchronized (trustedChains) {
+            trustedChains.put(key, expiry);
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Trusted certificate chain for "
+                    + chain[0].getSubjectDN() + " until " + expiry);
+        }
+    }
+    
+    private static String getChainKey(X509Certificate cert, String authType)
+            throws CertificateException {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(
+                cert.getEncoded());
+        } catch (NoSuchAlgorithmException e) {
+            throw new CertificateException(
+                    "Cannot compute certificate fingerprint", e);
+        } catch (CertificateEncodingException e) {
+            throw new CertificateException(
+                    "Cannot compute certificate fingerprint", e);
+        }
+        
+        final StringBuilder buf = new StringBuilder(digest.length * 2 + 16);
+        for (final byte b : digest) {
+            buf.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+        }
+        return buf.append(':').append(authType).toString();
     }
     
     public X509Certificate[] getAcceptedIssuers() {
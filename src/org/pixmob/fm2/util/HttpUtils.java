@@ -19,27 +19,33 @@ import static org.pixmob.fm2.Constants.APPLICATION_NAME_USER_AGENT;
 import static org.pixmob.fm2.Constants.DEBUG;
 import static org.pixmob.fm2.Constants.TAG;
 
-import java.io.File;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.net.HttpURLConnection;
-import java.net.InetAddress;
-import java.net.Socket;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.net.UnknownHostException;
+import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.SecureRandom;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Checksum;
 import java.util.zip.GZIPInputStream;
 
+import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 
@@ -48,6 +54,7 @@ import org.pixmob.fm2.R;
 
 import android.content.Context;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.net.SSLSessionCache;
 import android.os.Build;
 import android.util.Log;
 
@@ -56,8 +63,25 @@ import android.util.Log;
  * @author Pixmob
  */
 public final class HttpUtils {
+    /**
+     * Default maximum number of idle persistent connections.
+     */
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 8;
+    /**
+     * Default time (in ms) before an idle persistent connection is closed.
+     */
+    public static final long DEFAULT_KEEP_ALIVE_DURATION = 1000 * 30;
     private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+    private static final HostnameVerifier HOSTNAME_VERIFIER = new BrowserCompatHostnameVerifier();
+    private static final int SSL_SESSION_CACHE_SIZE = 16;
+    private static final int SSL_SESSION_TIMEOUT = 60 * 60 * 24;
+    private static final Pattern CHARSET_PATTERN = Pattern.compile(
+        "charset\\s*=\\s*[\"']?([a-zA-Z0-9_.-]+)", Pattern.CASE_INSENSITIVE);
+    private static final int CHARSET_SNIFF_LENGTH = 1024;
+    private static final int MAX_CONSUMED_RESPONSE_LENGTH = 1024 * 64;
     private static String applicationVersion;
+    private static volatile boolean connectionPooling;
+    private static SSLSocketFactory sslSocketFactory;
     
     static {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
@@ -70,6 +94,68 @@ public final class HttpUtils {
     private HttpUtils() {
     }
     
+    /**
+     * Enable or disable persistent connections. When this mode is enabled,
+     * connections to the same host are kept open, and reused by later
+     * requests: the TCP and SSL handshakes are done once. This mode is
+     * disabled by default, since some Android versions may freeze when a
+     * connection is reused. This method must be called when the application
+     * process is started, before the first request: the connection pool
+     * reads these settings once.
+     * @param enabled <code>true</code> to reuse connections
+     * @param maxIdleConnections maximum number of idle connections kept open
+     * @param keepAliveDuration time (in ms) before an idle connection is closed
+     */
+    public static void setConnectionPooling(boolean enabled,
+            int maxIdleConnections, long keepAliveDuration) {
+        if (enabled && Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
+            Log.w(TAG, "Persistent connections are not supported");
+            return;
+        }
+        
+        if (DEBUG) {
+            Log.d(TAG, "Persistent connections enabled: " + enabled
+                    + " (max idle connections: " + maxIdleConnections
+                    + ", keep-alive duration: " + keepAliveDuration + " ms)");
+        }
+        
+        connectionPooling = enabled;
+        System.setProperty("http.keepAlive", String.valueOf(enabled));
+        System.setProperty("http.maxConnections",
+            String.valueOf(maxIdleConnections));
+        System.setProperty("http.keepAliveDuration",
+            String.valueOf(keepAliveDuration));
+    }
+    
+    /**
+     * Read the remaining response body, so that the connection can be reused
+     * by a later request. This method does nothing if persistent connections
+     * are disabled. If the remaining body is too large, the connection is not
+     * reused.
+     */
+    public static void consumeResponse(HttpURLConnection conn) {
+        if (!connectionPooling) {
+            return;
+        }
+        
+        InputStream input = null;
+        try {
+            input = conn.getInputStream();
+            final byte[] buf = new byte[1024];
+            int consumed = 0;
+            for (int bytesRead; consumed < MAX_CONSUMED_RESPONSE_LENGTH
+                    && (bytesRead = input.read(buf)) != -1;) {
+                consumed += bytesRead;
+            }
+        } catch (IOException e) {
+            if (DEBUG) {
+                Log.d(TAG, "Cannot consume response from " + conn.getURL(), e);
+            }
+        } finally {
+            IOUtils.close(input);
+        }
+    }
+    
     /**
      * Get Http cookies from a response.
      */
@@ -84,25 +170,50 @@ public final class HttpUtils {
     }
     
     /**
-     * Download a file.
+     * Compute the checksum of a remote file. The file is read straight from
+     * the response stream, using <code>buf</code>: nothing is written to the
+     * filesystem.
+     * @return checksum value
      */
-    public static void downloadToFile(Context context, String uri,
-            Set<String> cookies, File outputFile) throws IOException {
-        final HttpURLConnection conn = newRequest(context, uri, cookies);
+    public static long computeChecksum(Context context, String uri,
+            Set<String> cookies, Checksum checksum, byte[] buf)
+            throws IOException {
+        return computeChecksum(newRequest(context, uri, cookies), checksum,
+            buf);
+    }
+    
+    /**
+     * Compute the checksum of a remote file, using a connection created with
+     * {@link #newRequest(Context, String, Set)}. The connection is closed when
+     * this method returns.
+     * @return checksum value
+     */
+    public static long computeChecksum(HttpURLConnection conn,
+            Checksum checksum, byte[] buf) throws IOException {
+        checksum.reset();
+        
         try {
             conn.connect();
             
             final int sc = conn.getResponseCode();
             if (sc != HttpURLConnection.HTTP_OK) {
-                throw new IOException("Cannot download file: " + uri
-                        + "; statusCode=" + sc);
+                throw new IOException("Cannot download file: "
+                        + conn.getURL() + "; statusCode=" + sc);
             }
             
             final InputStream input = getInputStream(conn);
-            IOUtils.writeToFile(input, outputFile);
+            try {
+                for (int bytesRead; (bytesRead = input.read(buf)) != -1;) {
+                    checksum.update(buf, 0, bytesRead);
+                }
+            } finally {
+                IOUtils.close(input);
+            }
         } finally {
             conn.disconnect();
         }
+        
+        return checksum.getValue();
     }
     
     /**
@@ -125,9 +236,11 @@ public final class HttpUtils {
         conn.setRequestProperty("Cache-Control", "max-age=0");
         conn.setDoInput(true);
         
-        // Close the connection when the request is done, or the application may
-        // freeze due to a bug in some Android versions.
-        conn.setRequestProperty("Connection", "close");
+        if (!connectionPooling) {
+            // Close the connection when the request is done, or the
+            // application may freeze due to a bug in some Android versions.
+            conn.setRequestProperty("Connection", "close");
+        }
         
         if (conn instanceof HttpsURLConnection) {
             setupSecureConnection(context, (HttpsURLConnection) conn);
@@ -202,6 +315,46 @@ public final class HttpUtils {
         return conn.getInputStream();
     }
     
+    /**
+     * Open a {@link Reader} for an Http response. The charset is read from the
+     * response headers, or from the beginning of the document (as declared in
+     * a <code>meta</code> tag). If no charset is found,
+     * <code>defaultCharset</code> is used.
+     */
+    public static Reader getReader(HttpURLConnection conn,
+            String defaultCharset) throws IOException {
+        final InputStream input = new BufferedInputStream(
+                getInputStream(conn), CHARSET_SNIFF_LENGTH * 2);
+        
+        String charset = getCharset(conn.getContentType());
+        if (charset == null) {
+            // Look for a charset declaration in the document.
+            final byte[] head = new byte[CHARSET_SNIFF_LENGTH];
+            input.mark(CHARSET_SNIFF_LENGTH);
+            int headLen = 0;
+            for (int bytesRead; headLen < head.length
+                    && (bytesRead = input.read(head, headLen, head.length
+                            - headLen)) != -1;) {
+                headLen += bytesRead;
+            }
+            input.reset();
+            charset = getCharset(new String(head, 0, headLen, "ISO-8859-1"));
+        }
+        if (charset == null || !Charset.isSupported(charset)) {
+            charset = defaultCharset;
+        }
+        
+        return new InputStreamReader(input, charset);
+    }
+    
+    private static String getCharset(String text) {
+        if (text == null) {
+            return null;
+        }
+        final Matcher m = CHARSET_PATTERN.matcher(text);
+        return m.find() ? m.group(1) : null;
+    }
+    
     /**
      * Get Http User Agent for this application.
      */
@@ -245,103 +398,86 @@ public final class HttpUtils {
      */
     private static void setupSecureConnection(Context context,
             HttpsURLConnection conn) throws IOException {
-        if (DEBUG) {
-            Log.d(TAG, "Load custom SSL certificates");
-        }
-        
-        final SSLContext sslContext;
-        try {
-            // Load SSL certificates:
-            // http://nelenkov.blogspot.com/2011/12/using-custom-certificate-trust-store-on.html
-            // Earlier Android versions do not have updated root CA
-            // certificates, resulting in connection errors.
-            final KeyStore keyStore = loadCertificates(context);
-            
-            final CustomTrustManager customTrustManager = new CustomTrustManager(
-                    keyStore);
-            final TrustManager[] tms = new TrustManager[] { customTrustManager };
+        conn.setSSLSocketFactory(getSSLSocketFactory(context));
+        conn.setHostnameVerifier(HOSTNAME_VERIFIER);
+    }
+    
+    /**
+     * Get the SSL socket factory shared by every connection. This factory is
+     * created once, when the first secure connection is made.
+     */
+    private static synchronized SSLSocketFactory getSSLSocketFactory(
+            Context context) throws IOException {
+        if (sslSocketFactory == null) {
+            if (DEBUG) {
+                Log.d(TAG, "Load custom SSL certificates");
+            }
             
-            // Init SSL connection with custom certificates.
-            // The same SecureRandom instance is used for every connection to
-            // speed up initialization.
-            sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(null, tms, SECURE_RANDOM);
-        } catch (GeneralSecurityException e) {
-            final IOException ioe = new IOException(
-                    "Failed to initialize SSL engine");
-            ioe.initCause(e);
-            throw ioe;
-        }
-        
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
-            // Fix slow read:
-            // http://code.google.com/p/android/issues/detail?id=13117
-            // Prior to ICS, the host name is still resolved even if we already
-            // know its IP address, for each connection.
-            final SSLSocketFactory delegate = sslContext.getSocketFactory();
-            final SSLSocketFactory socketFactory = new SSLSocketFactory() {
-                @Override
-                public Socket createSocket(String host, int port)
-                        throws IOException, UnknownHostException {
-                    InetAddress addr = InetAddress.getByName(host);
-                    injectHostname(addr, host);
-                    return delegate.createSocket(addr, port);
-                }
-                
-                @Override
-                public Socket createSocket(InetAddress host, int port)
-                        throws IOException {
-                    return delegate.createSocket(host, port);
-                }
-                
-                @Override
-                public Socket createSocket(String host, int port,
-                        InetAddress localHost, int localPort)
-                        throws IOException, UnknownHostException {
-                    return delegate.createSocket(host, port, localHost,
-                        localPort);
-                }
+            final SSLContext sslContext;
+            try {
+                // Load SSL certificates:
+                // http://nelenkov.blogspot.com/2011/12/using-custom-certificate-trust-store-on.html
+                // Earlier Android versions do not have updated root CA
+                // certificates, resulting in connection errors.
+                final KeyStore keyStore = loadCertificates(context);
                 
-                @Override
-                public Socket createSocket(InetAddress address, int port,
-                        InetAddress localAddress, int localPort)
-                        throws IOException {
-                    return delegate.createSocket(address, port, localAddress,
-                        localPort);
-                }
+                final CustomTrustManager customTrustManager = new CustomTrustManager(
+                        keyStore);
+                final TrustManager[] tms = new TrustManager[] { customTrustManager };
                 
-                private void injectHostname(InetAddress address, String host) {
-                    try {
-                        Field field = InetAddress.class
-                                .getDeclaredField("hostName");
-                        field.setAccessible(true);
-                        field.set(address, host);
-                    } catch (Exception ignored) {
+                // Init SSL connection with custom certificates.
+                sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, tms, SECURE_RANDOM);
+            } catch (GeneralSecurityException e) {
+                final IOException ioe = new IOException(
+                        "Failed to initialize SSL engine");
+                ioe.initCause(e);
+                throw ioe;
+            }
+            
+            // SSL sessions are reused, even if the application is restarted:
+            // an abbreviated handshake is made when a session is resumed.
+            final SSLSessionContext sessionContext = sslContext
+                    .getClientSessionContext();
+            sessionContext.setSessionCacheSize(SSL_SESSION_CACHE_SIZE);
+            sessionContext.setSessionTimeout(SSL_SESSION_TIMEOUT);
+            enablePersistentSessionCache(context, sessionContext);
+            
+            sslSocketFactory = new CustomSSLSocketFactory(
+                    sslContext.getSocketFactory());
+        }
+        return sslSocketFactory;
+    }
+    
+    /**
+     * Store SSL sessions in the application private directory. The Android
+     * class {@link SSLSessionCache} does not expose its cache for custom SSL
+     * contexts: reflection is used to set it up, as
+     * <code>SSLCertificateSocketFactory</code> does.
+     */
+    private static void enablePersistentSessionCache(Context context,
+            SSLSessionContext sessionContext) {
+        try {
+            final SSLSessionCache cache = new SSLSessionCache(
+                    context.getApplicationContext());
+            final Field cacheField = SSLSessionCache.class
+                    .getDeclaredField("mSessionCache");
+            cacheField.setAccessible(true);
+            final Object persistentCache = cacheField.get(cache);
+            
+            for (final Method m : sessionContext.getClass().getMethods()) {
+                if ("setPersistentCache".equals(m.getName())
+                        && m.getParameterTypes().length == 1) {
+                    m.invoke(sessionContext, persistentCache);
+                    if (DEBUG) {
+                        Log.d(TAG, "Persistent SSL session cache enabled");
                     }
+                    return;
                 }
-                
-                @Override
-                public Socket createSocket(Socket s, String host, int port,
-                        boolean autoClose) throws IOException {
-                    injectHostname(s.getInetAddress(), host);
-                    return delegate.createSocket(s, host, port, autoClose);
-                }
-                
-                @Override
-                public String[] getDefaultCipherSuites() {
-                    return delegate.getDefaultCipherSuites();
-                }
-                
-                @Override
-                public String[] getSupportedCipherSuites() {
-                    return delegate.getSupportedCipherSuites();
-                }
-            };
-            conn.setSSLSocketFactory(socketFactory);
-        } else {
-            conn.setSSLSocketFactory(sslContext.getSocketFactory());
+            }
+            Log.w(TAG, "Persistent SSL session cache is not supported");
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to enable persistent SSL session cache", e);
         }
-        
-        conn.setHostnameVerifier(new BrowserCompatHostnameVerifier());
     }
 }
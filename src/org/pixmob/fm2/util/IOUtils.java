@@ -16,10 +16,7 @@
 package org.pixmob.fm2.util;
 
 import java.io.Closeable;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 /**
  * I/0 utilities.
@@ -41,21 +38,4 @@ public final class IOUtils {
             }
         }
     }
-    
-    /**
-     * Write a stream to a file.
-     */
-    public static void writeToFile(InputStream input, File outputFile)
-            throws IOException {
-        final FileOutputStream output = new FileOutputStream(outputFile);
-        try {
-            final byte[] buf = new byte[2048];
-            for (int bytesRead; (bytesRead = input.read(buf)) != -1;) {
-                output.write(buf, 0, bytesRead);
-            }
-        } finally {
-            close(output);
-            close(input);
-        }
-    }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.model;
+
+import static org.pixmob.fm2.model.AccountCodecTest.decode;
+import static org.pixmob.fm2.model.AccountCodecTest.encode;
+import static org.pixmob.fm2.model.AccountCodecTest.newAccount;
+import static org.pixmob.fm2.model.AccountCodecTest.serialize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+
+import org.pixmob.fm2.model.AccountCodecTest.SerializableAccount;
+
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Microbenchmark comparing the encoding time of {@link AccountCodec} with Java
+ * serialization, which was used before {@link AccountCodec}, and
+ * {@link Parcel}. Results are written to the log.
+ * <p>
+ * This benchmark is skipped unless its log tag is enabled:
+ * </p>
+ *
+ * <pre>
+ * adb shell setprop log.tag.FM2Benchmark VERBOSE
+ * adb shell am instrument -w -e class org.pixmob.fm2.model.AccountCodecBenchmark \
+ *     org.pixmob.fm2.tests/android.test.InstrumentationTestRunner
+ * </pre>
+ * @author Pixmob
+ */
+@LargeTest
+public class AccountCodecBenchmark extends AndroidTestCase {
+    private static final String TAG = "FM2Benchmark";
+    private static final int ITERATIONS = 2000;
+    private static final int ROUNDS = 3;
+    
+    public void testEncodingTime() throws Exception {
+        if (!Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.i(TAG, "Account codec benchmark skipped");
+            return;
+        }
+        
+        final Account account = newAccount();
+        final SerializableAccount serializableAccount = new SerializableAccount(
+                account);
+        
+        for (int round = 0; round < ROUNDS; ++round) {
+            // Java serialization.
+            long start = System.nanoTime();
+            byte[] serialized = null;
+            for (int i = 0; i < ITERATIONS; ++i) {
+                serialized = serialize(serializableAccount);
+            }
+            final long serializeTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; ++i) {
+                deserialize(serialized);
+            }
+            final long deserializeTime = System.nanoTime() - start;
+            
+            // Binary codec.
+            start = System.nanoTime();
+            byte[] encoded = null;
+            for (int i = 0; i < ITERATIONS; ++i) {
+                encoded = encode(account, true);
+            }
+            final long encodeTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; ++i) {
+                decode(encoded);
+            }
+            final long decodeTime = System.nanoTime() - start;
+            
+            // Parcel: the password is not written.
+            start = System.nanoTime();
+            byte[] parceled = null;
+            for (int i = 0; i < ITERATIONS; ++i) {
+                parceled = marshall(account);
+            }
+            final long marshallTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; ++i) {
+                unmarshall(parceled);
+            }
+            final long unmarshallTime = System.nanoTime() - start;
+            
+            Log.i(TAG, "Account encoding, round " + (round + 1) + ": "
+                    + "serialization " + format(serialized, serializeTime,
+                        deserializeTime) + "; codec "
+                    + format(encoded, encodeTime, decodeTime) + "; parcel "
+                    + format(parceled, marshallTime, unmarshallTime));
+        }
+    }
+    
+    private static String format(byte[] data, long encodeTime,
+            long decodeTime) {
+        return data.length + " bytes, encode " + encodeTime / 1000 / ITERATIONS
+                + " us, decode " + decodeTime / 1000 / ITERATIONS + " us";
+    }
+    
+    private static Object deserialize(byte[] data) throws IOException,
+            ClassNotFoundException {
+        return new ObjectInputStream(new ByteArrayInputStream(data))
+                .readObject();
+    }
+    
+    private static byte[] marshall(Account account) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            account.writeToParcel(parcel, 0);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+    
+    private static Account unmarshall(byte[] data) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            return Account.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
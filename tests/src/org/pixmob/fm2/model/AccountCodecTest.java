@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for {@link AccountCodec}. Encoding times are measured by
+ * {@link AccountCodecBenchmark}.
+ * @author Pixmob
+ */
+public class AccountCodecTest extends AndroidTestCase {
+    public void testRoundTrip() throws IOException {
+        final Account account = newAccount();
+        final Account decoded = decode(encode(account, true));
+        assertEquals(account.id, decoded.id);
+        assertEquals(account.name, decoded.name);
+        assertEquals(account.phoneNumber, decoded.phoneNumber);
+        assertEquals(account.login, decoded.login);
+        assertEquals(account.password, decoded.password);
+        assertEquals(account.status, decoded.status);
+        assertEquals(account.timestamp, decoded.timestamp);
+    }
+    
+    public void testRoundTripWithoutPassword() throws IOException {
+        final Account account = newAccount();
+        account.name = null;
+        final Account decoded = decode(encode(account, false));
+        assertNull(decoded.name);
+        assertNull(decoded.password);
+        assertEquals(account.login, decoded.login);
+    }
+    
+    public void testEncodedSize() throws IOException {
+        final Account account = newAccount();
+        final byte[] serialized = serialize(new SerializableAccount(account));
+        assertTrue(encode(account, true).length < serialized.length);
+    }
+    
+    static Account newAccount() {
+        final Account account = new Account();
+        account.id = 42;
+        account.name = "Forfait 2 euros";
+        account.phoneNumber = "0612345678";
+        account.login = "12345678";
+        account.password = "secret99";
+        account.status = 3;
+        account.timestamp = 1330000000000L;
+        return account;
+    }
+    
+    static byte[] encode(Account account, boolean withPassword)
+            throws IOException {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(buf);
+        AccountCodec.write(out, account, withPassword);
+        out.flush();
+        return buf.toByteArray();
+    }
+    
+    static Account decode(byte[] data) throws IOException {
+        return AccountCodec.read(new DataInputStream(new ByteArrayInputStream(
+                data)));
+    }
+    
+    static byte[] serialize(Serializable obj) throws IOException {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+        final ObjectOutputStream out = new ObjectOutputStream(buf);
+        out.writeObject(obj);
+        out.close();
+        return buf.toByteArray();
+    }
+    
+    /**
+     * Account fields, as they were serialized before {@link AccountCodec}.
+     * @author Pixmob
+     */
+    static class SerializableAccount implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public int id;
+        public String name;
+        public String phoneNumber;
+        public String login;
+        public String password;
+        public int status;
+        public long timestamp;
+        
+        public SerializableAccount(final Account account) {
+            id = account.id;
+            name = account.name;
+            phoneNumber = account.phoneNumber;
+            login = account.login;
+            password = account.password;
+            status = account.status;
+            timestamp = account.timestamp;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.fm2.net;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+
+import org.jsoup.Jsoup;
+import org.pixmob.fm2.model.Account;
+import org.pixmob.fm2.util.IOUtils;
+
+import android.content.res.AssetManager;
+import android.test.InstrumentationTestCase;
+
+/**
+ * Check that {@link AccountPageParser} extracts the same account data from a
+ * stream as from a Jsoup document. Pages are read from the
+ * <code>assets/pages</code> directory of the test application.
+ * @author Pixmob
+ */
+public class AccountPageParserTest extends InstrumentationTestCase {
+    private static final String PAGES_DIR = "pages";
+    private static final String[] CONTRACTS = { "Forfait Free 19,99&euro;",
+            "Forfait <b>Illimit&eacute;</b>", "Forfait 2&nbsp;&euro;" };
+    private static final String[] PHONE_NUMBERS = {
+            "06 12 34 56 78 (Num&eacute;ro d&eacute;finitif)",
+            "07&#x20;00 00 00 00 (Num&eacute;ro provisoire)", "0611223344" };
+    private static final String[] SEPARATORS = { "<br>", "<br/>\n  ",
+            "</td><td class=\"produit\">" };
+    private static final int STATUS_STEPS = 3;
+    
+    public void testStreamParserMatchesJsoup() throws IOException {
+        for (final String page : listPages()) {
+            final String html = readPage(page);
+            assertSameAccountData(page, new StringReader(html), html);
+        }
+    }
+    
+    public void testStreamParserWithSmallReads() throws IOException {
+        // Tags and entities are split across buffer boundaries.
+        for (final String page : listPages()) {
+            final String html = readPage(page);
+            assertSameAccountData(page, new SingleCharReader(new StringReader(
+                    html)), html);
+        }
+    }
+    
+    public void testGeneratedPages() throws IOException {
+        // Page layouts are generated from a template. Padding moves account
+        // data across buffer boundaries.
+        int variant = 0;
+        for (final String contract : CONTRACTS) {
+            for (final String phoneNumber : PHONE_NUMBERS) {
+                for (final String separator : SEPARATORS) {
+                    for (int status = 0; status <= STATUS_STEPS; ++status) {
+                        final String html = generatePage(contract,
+                            phoneNumber, separator, status, variant);
+                        final String page = "generated page " + variant;
+                        assertSameAccountData(page, new StringReader(html),
+                            html);
+                        assertSameAccountData(page, new SingleCharReader(
+                                new StringReader(html)), html);
+                        ++variant;
+                    }
+                }
+            }
+        }
+    }
+    
+    public void testFirstProductCell() throws IOException {
+        // Both parsers use the first product cell.
+        final String html = readPage("p7.html");
+        final Account streamAccount = new Account();
+        assertTrue(AccountPageParser.parse(new StringReader(html),
+            streamAccount));
+        final Account jsoupAccount = new Account();
+        assertTrue(AccountPageParser.parse(Jsoup.parse(html), jsoupAccount));
+        for (final Account account : new Account[] { streamAccount,
+                jsoupAccount }) {
+            assertTrue(account.name, account.name.startsWith("Forfait Free"));
+            assertEquals("06 12 34 56 78", account.phoneNumber);
+            assertEquals(2, account.status);
+        }
+    }
+    
+    private static String generatePage(String contract, String phoneNumber,
+            String separator, int status, int variant) {
+        final StringBuilder statusHtml = new StringBuilder(128);
+        statusHtml.append("<div id=\"etapes\">");
+        for (int i = 0; i < STATUS_STEPS; ++i) {
+            statusHtml.append("<h4 class=\"")
+                    .append(i < status ? "actif1" : "inactif1").append("\">")
+                    .append(i).append("</h4>\n");
+        }
+        statusHtml.append("</div>");
+        final String productHtml = "<table class=\"commande\"><tr>"
+                + "<td class=\"produit\">\n  Forfait : " + contract + separator
+                + "Num&eacute;ro : " + phoneNumber
+                + "</td><td class=\"prix\">19,99 &euro;</td></tr></table>";
+        
+        final StringBuilder html = new StringBuilder(4096);
+        html.append("<html><head><meta charset=\"utf-8\"></head><body><p>");
+        for (int i = 0; i < variant * 37; ++i) {
+            html.append("lorem ipsum ");
+        }
+        html.append("</p>");
+        if (variant % 2 == 0) {
+            html.append(statusHtml).append(productHtml);
+        } else {
+            html.append(productHtml).append(statusHtml);
+        }
+        html.append("</body></html>");
+        return html.toString();
+    }
+    
+    private static void assertSameAccountData(String page, Reader reader,
+            String html) throws IOException {
+        final Account streamAccount = new Account();
+        final boolean streamFound = AccountPageParser.parse(reader,
+            streamAccount);
+        final Account jsoupAccount = new Account();
+        final boolean jsoupFound = AccountPageParser.parse(Jsoup.parse(html),
+            jsoupAccount);
+        
+        assertEquals(page, jsoupFound, streamFound);
+        assertEquals(page, jsoupAccount.status, streamAccount.status);
+        assertEquals(page, jsoupAccount.name, streamAccount.name);
+        assertEquals(page, jsoupAccount.phoneNumber, streamAccount.phoneNumber);
+    }
+    
+    private String[] listPages() throws IOException {
+        final String[] pages = getAssets().list(PAGES_DIR);
+        assertTrue("No page found", pages.length != 0);
+        return pages;
+    }
+    
+    private String readPage(String page) throws IOException {
+        final Reader reader = new InputStreamReader(getAssets().open(
+            PAGES_DIR + "/" + page), "UTF-8");
+        try {
+            final StringBuilder html = new StringBuilder(4096);
+            final char[] buf = new char[1024];
+            for (int charsRead; (charsRead = reader.read(buf)) != -1;) {
+                html.append(buf, 0, charsRead);
+            }
+            return html.toString();
+        } finally {
+            IOUtils.close(reader);
+        }
+    }
+    
+    private AssetManager getAssets() {
+        // Pages are stored in the test application.
+        return getInstrumentation().getContext().getAssets();
+    }
+    
+    /**
+     * {@link Reader} returning a single character for each read.
+     * @author Pixmob
+     */
+    private static class SingleCharReader extends FilterReader {
+        public SingleCharReader(final Reader in) {
+            super(in);
+        }
+        
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            return super.read(cbuf, off, Math.min(len, 1));
+        }
+    }
+}